@@ -1,8 +1,17 @@
 package com.austinv11.etf.benchmarks;
 
 import com.austinv11.etf.ETFConfig;
+import com.austinv11.etf.util.GenerateCodec;
+import com.austinv11.etf.util.Mapper;
+import com.austinv11.etf.util.ReflectionUtils;
 import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 public class Benchmarks {
@@ -24,14 +33,243 @@ public class Benchmarks {
 		}
 	}
 	
+	@State(Scope.Benchmark)
+	public static class NestedContext {
+		
+		@Param({"1", "16", "256", "4096"})
+		int depth;
+		
+		ETFConfig config;
+		Object term;
+		byte[] encoded;
+		
+		@Setup(Level.Trial)
+		public void init() {
+			config = new ETFConfig().setBert(false).setCompression(false)
+					.setIncludeDistributionHeader(false).setIncludeHeader(false).setLoqui(true).setVersion(131)
+					.setMaxDepth(Integer.MAX_VALUE);
+			Object term = 1;
+			for (int i = 0; i < depth; i++)
+				term = Collections.singletonList(term);
+			this.term = term;
+			encoded = config.createWriter().write(term).toBytes();
+		}
+	}
+	
+	@State(Scope.Benchmark)
+	public static class WriterContext {
+		
+		ETFConfig config;
+		Map<String, Object> message;
+		List<Integer> ints;
+		
+		@Setup(Level.Trial)
+		public void init() {
+			config = new ETFConfig().setBert(false).setCompression(false)
+					.setIncludeDistributionHeader(false).setIncludeHeader(false).setLoqui(true).setVersion(131);
+			
+			Map<String, Object> author = new HashMap<>();
+			author.put("id", 80351110224678912L);
+			author.put("username", "Nelly");
+			author.put("discriminator", "1337");
+			author.put("bot", false);
+			Map<String, Object> data = new HashMap<>();
+			data.put("id", 334385199974967042L);
+			data.put("channel_id", 290926798999357250L);
+			data.put("content", "Supa Hot, it's a message with some content in it");
+			data.put("author", author);
+			data.put("mentions", Collections.emptyList());
+			data.put("pinned", false);
+			data.put("score", 0.75);
+			message = new HashMap<>();
+			message.put("op", 0);
+			message.put("s", 42);
+			message.put("t", "MESSAGE_CREATE");
+			message.put("d", data);
+			
+			ints = new ArrayList<>();
+			for (int i = 0; i < 1000; i++)
+				ints.add(i * 1000);
+		}
+	}
+	
 	public static class TestClass {
 		
 	}
 	
+	public static class Pojo {
+		
+		private long id;
+		private String name;
+		public int count;
+		
+		public long getId() {
+			return id;
+		}
+		
+		public void setId(long id) {
+			this.id = id;
+		}
+	}
+	
+	@GenerateCodec
+	public static class CodecPojo {
+		
+		private long id;
+		private String name;
+		public int count;
+		
+		public long getId() {
+			return id;
+		}
+		
+		public void setId(long id) {
+			this.id = id;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public void setName(String name) {
+			this.name = name;
+		}
+	}
+	
+	@State(Scope.Benchmark)
+	public static class AccessorContext {
+		
+		Pojo pojo;
+		CodecPojo codecPojo;
+		byte[] encoded;
+		Mapper mapper;
+		ReflectionUtils.PropertyMetadata[] properties;
+		ReflectionUtils.IPropertyAccessor[] reflective;
+		ReflectionUtils.IPropertyMutator[] reflectiveMutators;
+		
+		@Setup(Level.Trial)
+		public void init() throws Exception {
+			pojo = new Pojo();
+			pojo.id = 80351110224678912L;
+			pojo.name = "Nelly";
+			pojo.count = 42;
+			mapper = new ETFConfig().createMapper();
+			encoded = mapper.writeToMap(pojo);
+			codecPojo = new CodecPojo();
+			codecPojo.id = pojo.id;
+			codecPojo.name = pojo.name;
+			codecPojo.count = pojo.count;
+			properties = ReflectionUtils.getProperties(Pojo.class, Pojo.class);
+			//The accessors properties were read through before they were generated
+			ReflectionUtils.MethodAccessorAndMutator id = new ReflectionUtils.MethodAccessorAndMutator(pojo,
+					Pojo.class.getMethod("getId"));
+			ReflectionUtils.FieldAccessorAndMutator name = new ReflectionUtils.FieldAccessorAndMutator(pojo,
+					Pojo.class.getDeclaredField("name"));
+			ReflectionUtils.FieldAccessorAndMutator count = new ReflectionUtils.FieldAccessorAndMutator(pojo,
+					Pojo.class.getDeclaredField("count"));
+			reflective = new ReflectionUtils.IPropertyAccessor[]{id, name, count};
+			reflectiveMutators = new ReflectionUtils.IPropertyMutator[]{
+					new ReflectionUtils.MethodAccessorAndMutator(pojo, Pojo.class.getMethod("setId", long.class)),
+					name, count};
+		}
+	}
+	
 	@Benchmark
 	@BenchmarkMode(Mode.All)
 	@OutputTimeUnit(TimeUnit.NANOSECONDS)
 	public void etf(Context context) {
 		//TODO
 	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public byte[] writeNested(NestedContext context) {
+		return context.config.createWriter().write(context.term).toBytes();
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public Object parseNested(NestedContext context) {
+		return context.config.createParser(context.encoded).next();
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public byte[] writeMessage(WriterContext context) {
+		return context.config.createWriter().write(context.message).toBytes();
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public byte[] writeIntList(WriterContext context) {
+		return context.config.createWriter().write(context.ints).toBytes();
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void readPropertiesReflective(AccessorContext context, Blackhole blackhole) {
+		for (ReflectionUtils.IPropertyAccessor accessor : context.reflective)
+			blackhole.consume(accessor.get());
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void readPropertiesGenerated(AccessorContext context, Blackhole blackhole) {
+		for (ReflectionUtils.PropertyMetadata property : context.properties)
+			blackhole.consume(property.getValue(context.pojo));
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void writePropertiesReflective(AccessorContext context) {
+		ReflectionUtils.IPropertyMutator[] mutators = context.reflectiveMutators;
+		mutators[0].set(80351110224678912L);
+		mutators[1].set("Nelly");
+		mutators[2].set(42);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void writePropertiesGenerated(AccessorContext context) {
+		ReflectionUtils.PropertyMetadata[] properties = context.properties;
+		properties[0].setValue(context.pojo, 80351110224678912L);
+		properties[1].setValue(context.pojo, "Nelly");
+		properties[2].setValue(context.pojo, 42);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public byte[] mapperWrite(AccessorContext context) {
+		return context.mapper.writeToMap(context.pojo);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public Pojo mapperRead(AccessorContext context) {
+		return context.mapper.read(context.encoded, Pojo.class);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public byte[] mapperWriteGenerated(AccessorContext context) {
+		return context.mapper.writeToMap(context.codecPojo);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public CodecPojo mapperReadGenerated(AccessorContext context) {
+		return context.mapper.read(context.encoded, CodecPojo.class);
+	}
 }
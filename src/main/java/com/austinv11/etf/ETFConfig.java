@@ -1,10 +1,26 @@
 package com.austinv11.etf;
 
 import com.austinv11.etf.parsing.ETFParser;
+import com.austinv11.etf.util.DictionaryTrainer;
 import com.austinv11.etf.util.ETFConstants;
 import com.austinv11.etf.util.Mapper;
+import com.austinv11.etf.util.Versioned;
+import com.austinv11.etf.writing.AtomCache;
+import com.austinv11.etf.writing.ETFBatchWriter;
+import com.austinv11.etf.writing.EncodingCache;
+import com.austinv11.etf.writing.BufferPool;
+import com.austinv11.etf.writing.CompressionStats;
+import com.austinv11.etf.writing.ETFTemplate;
 import com.austinv11.etf.writing.ETFWriter;
 
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
 /**
  * This provides a clean way to configure etf handlers.
  */
@@ -16,6 +32,17 @@ public class ETFConfig {
     private boolean includeDistributionHeader = false;
     private boolean loqui = false;
     private boolean compress = false;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int compressionThreshold = 1024;
+    private final CompressionStats compressionStats = new CompressionStats();
+    private byte[] compressionDictionary = null;
+    private final Map<Integer, byte[]> compressionDictionaries = new ConcurrentHashMap<>(); //Keyed by id
+    private int maxDepth = ETFConstants.DEFAULT_MAX_DEPTH;
+    private AtomCache atomCache = null;
+    private EncodingCache encodingCache = EncodingCache.DEFAULT;
+    private int segmentThreshold = 0;
+    private int parallelThreshold = 0;
+    private ForkJoinPool parallelPool = ForkJoinPool.commonPool();
 
     /**
      * This returns whether this supports <a href="http://bert-rpc.org/">BERT</a>.
@@ -146,6 +173,249 @@ public class ETFConfig {
         return this;
     }
 
+    /**
+     * This gets the zlib compression level used when compressing.
+     *
+     * @return The compression level.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * This sets the zlib compression level used when compressing.
+     *
+     * @param compressionLevel The compression level (0-9 or {@link Deflater#DEFAULT_COMPRESSION}).
+     * @return The current config instance (for chaining).
+     */
+    public ETFConfig setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    /**
+     * This gets the size (in bytes) below which messages are not compressed even when compression is enabled.
+     *
+     * @return The compression threshold.
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * This sets the size (in bytes) below which messages are not compressed even when compression is enabled.
+     *
+     * @param compressionThreshold The compression threshold.
+     * @return The current config instance (for chaining).
+     */
+    public ETFConfig setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    /**
+     * This gets the compression ratios observed by writers created from this config, these are used to stop
+     * compressing kinds of messages which don't compress well.
+     *
+     * @return The compression stats.
+     */
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    /**
+     * This gets the preset dictionary which writers compress with.
+     *
+     * @return The dictionary, or null if messages are compressed without one.
+     */
+    public byte[] getCompressionDictionary() {
+        return compressionDictionary;
+    }
+
+    /**
+     * This sets a preset dictionary (see {@link DictionaryTrainer}) which writers compress with, this lets even small
+     * messages compress well so the {@link #setCompressionThreshold(int) compression threshold} can be lowered. The
+     * dictionary's id is recorded in the compressed data, so it is also registered for parsing (see
+     * {@link #registerCompressionDictionary(byte[])}). Peers must have the same dictionary to parse the messages.
+     *
+     * @param compressionDictionary The dictionary, or null to compress without one. This is not copied so it must not be
+     *                              modified afterwards.
+     * @return The current config instance (for chaining).
+     */
+    public ETFConfig setCompressionDictionary(byte[] compressionDictionary) {
+        this.compressionDictionary = compressionDictionary;
+        if (compressionDictionary != null)
+            registerCompressionDictionary(compressionDictionary);
+        return this;
+    }
+
+    /**
+     * This registers a preset dictionary which parsers can decompress messages with, it is picked by the id in the
+     * compressed data. Registering several dictionaries allows switching to a new dictionary while messages compressed
+     * with older ones are still being received.
+     *
+     * @param dictionary The dictionary. This is not copied so it must not be modified afterwards.
+     * @return The current config instance (for chaining).
+     */
+    public ETFConfig registerCompressionDictionary(byte[] dictionary) {
+        compressionDictionaries.put(DictionaryTrainer.getId(dictionary), dictionary);
+        return this;
+    }
+
+    /**
+     * This gets a registered preset dictionary by its id.
+     *
+     * @param id The dictionary's id (see {@link DictionaryTrainer#getId(byte[])}).
+     * @return The dictionary, or null if none is registered with the id.
+     */
+    public byte[] getCompressionDictionary(int id) {
+        return compressionDictionaries.get(id);
+    }
+
+    /**
+     * This gets the size at which binaries are referenced by writers instead of being copied into them.
+     *
+     * @return The segment threshold in bytes, 0 if binaries are always copied.
+     */
+    public int getSegmentThreshold() {
+        return segmentThreshold;
+    }
+
+    /**
+     * This sets the size at which binaries are referenced by writers instead of being copied into them. Referenced
+     * binaries are sent as their own segments (see {@link ETFWriter#toSegments()}) so large payloads are never copied,
+     * they must not be modified until the message has been sent. This does not apply to streaming writers.
+     *
+     * @param segmentThreshold The segment threshold in bytes, 0 to always copy binaries.
+     * @return The current config instance (for chaining).
+     */
+    public ETFConfig setSegmentThreshold(int segmentThreshold) {
+        this.segmentThreshold = segmentThreshold;
+        return this;
+    }
+
+    /**
+     * This gets the number of elements at which writers encode lists and maps in parallel.
+     *
+     * @return The parallel threshold, 0 if collections are always encoded on the writing thread.
+     */
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * This sets the number of elements at which writers encode lists and maps in parallel. The elements are split into
+     * ranges which are encoded on the {@link #getParallelPool() parallel pool} and then stitched together behind the
+     * collection's header, either by copying them or as segments (see {@link #setSegmentThreshold(int)}). The
+     * elements must be safe to read from multiple threads while the collection is written.
+     *
+     * @param parallelThreshold The parallel threshold, 0 to always encode collections on the writing thread.
+     * @return The current config instance (for chaining).
+     */
+    public ETFConfig setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+        return this;
+    }
+
+    /**
+     * This gets the pool which large collections are encoded on.
+     *
+     * @return The pool.
+     */
+    public ForkJoinPool getParallelPool() {
+        return parallelPool;
+    }
+
+    /**
+     * This sets the pool which large collections are encoded on, this is the common pool by default.
+     *
+     * @param parallelPool The pool.
+     * @return The current config instance (for chaining).
+     */
+    public ETFConfig setParallelPool(ForkJoinPool parallelPool) {
+        this.parallelPool = parallelPool;
+        return this;
+    }
+
+    /**
+     * This gets the maximum depth terms can be nested when parsed or written.
+     *
+     * @return The maximum nesting depth.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * This sets the maximum depth terms can be nested when parsed or written. Nested terms are handled with an
+     * explicit stack so this is not bound by the thread's stack size, exceeding it causes an
+     * {@link com.austinv11.etf.util.ETFException} instead.
+     *
+     * @param maxDepth The maximum nesting depth.
+     * @return The current config instance (for chaining).
+     */
+    public ETFConfig setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * This gets the cache writers use for encoded atoms.
+     *
+     * @return The atom cache, or null if atoms aren't cached.
+     */
+    public AtomCache getAtomCache() {
+        return atomCache;
+    }
+
+    /**
+     * This sets the cache writers use for encoded atoms, i.e. the shared {@link AtomCache#DEFAULT}. By default atoms
+     * aren't cached.
+     *
+     * @param atomCache The atom cache, or null to encode atoms on every write.
+     * @return The current config instance (for chaining).
+     */
+    public ETFConfig setAtomCache(AtomCache atomCache) {
+        this.atomCache = atomCache;
+        return this;
+    }
+
+    /**
+     * This registers atoms which are written often (i.e. map keys or enum names) with the atom cache so they're always
+     * written pre-encoded. If no cache has been set, a cache which only holds registered atoms is created. This is
+     * meant to be called at startup.
+     *
+     * @param atoms The atoms to register.
+     * @return The current config instance (for chaining).
+     */
+    public ETFConfig registerAtoms(String... atoms) {
+        if (atomCache == null)
+            atomCache = new AtomCache(0);
+        atomCache.register(atoms);
+        return this;
+    }
+
+    /**
+     * This gets the cache which writers copy the encodings of {@link Versioned} objects from.
+     *
+     * @return The encoding cache, or null if versioned objects are encoded on every write.
+     */
+    public EncodingCache getEncodingCache() {
+        return encodingCache;
+    }
+
+    /**
+     * This sets the cache which writers copy the encodings of {@link Versioned} objects from, the shared
+     * {@link EncodingCache#DEFAULT} cache is used by default.
+     *
+     * @param encodingCache The encoding cache, or null to encode versioned objects on every write.
+     * @return The current config instance (for chaining).
+     */
+    public ETFConfig setEncodingCache(EncodingCache encodingCache) {
+        this.encodingCache = encodingCache;
+        return this;
+    }
+
     /**
      * This creates a new parser using the set configuration.
      *
@@ -186,6 +456,48 @@ public class ETFConfig {
         return new ETFWriter(this, partial);
     }
     
+    /**
+     * This creates a new streaming writer using the set configuration. The message is flushed to the stream as it is
+     * written instead of being held in memory.
+     *
+     * @param out The stream to write to.
+     * @return The new writer instance.
+     */
+    public ETFWriter createWriter(OutputStream out) {
+        return new ETFWriter(this, out, ETFWriter.DEFAULT_STREAM_BUFFER_SIZE);
+    }
+    
+    /**
+     * This creates a new streaming writer using the set configuration. The message is flushed to the channel as it is
+     * written instead of being held in memory.
+     *
+     * @param channel The channel to write to.
+     * @return The new writer instance.
+     */
+    public ETFWriter createWriter(WritableByteChannel channel) {
+        return new ETFWriter(this, channel, ETFWriter.DEFAULT_STREAM_BUFFER_SIZE);
+    }
+    
+    /**
+     * This creates a new writer using the set configuration which encodes straight into the provided buffer.
+     *
+     * @param target The buffer to write to.
+     * @return The new writer instance.
+     */
+    public ETFWriter createWriter(ByteBuffer target) {
+        return new ETFWriter(this, target);
+    }
+    
+    /**
+     * This creates a new writer using the set configuration which encodes into pooled direct buffers.
+     *
+     * @param pool The pool to take buffers from.
+     * @return The new writer instance.
+     */
+    public ETFWriter createWriter(BufferPool pool) {
+        return new ETFWriter(this, pool);
+    }
+    
     /**
      * This creates a new mapper using this configuration.
      *
@@ -194,4 +506,25 @@ public class ETFConfig {
     public Mapper createMapper() {
         return new Mapper(this);
     }
+
+    /**
+     * This creates a new message template using the set configuration.
+     *
+     * @param shape The term to encode, with {@link ETFTemplate.Slot}s in place of the values which change.
+     * @return The new template instance.
+     */
+    public ETFTemplate createTemplate(Object shape) {
+        return new ETFTemplate(this, shape);
+    }
+
+    /**
+     * This creates a new batch writer using the set configuration.
+     *
+     * @param versioned Whether each frame starts with a version byte.
+     * @param lengthPrefixed Whether each frame is preceded by its length.
+     * @return The new batch writer instance.
+     */
+    public ETFBatchWriter createBatchWriter(boolean versioned, boolean lengthPrefixed) {
+        return new ETFBatchWriter(this, versioned, lengthPrefixed);
+    }
 }
@@ -0,0 +1,86 @@
+package com.austinv11.etf.erlang;
+
+import com.austinv11.etf.ETFConfig;
+import com.austinv11.etf.parsing.ETFParser;
+import com.austinv11.etf.util.ETFConstants;
+import com.austinv11.etf.util.ETFException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This represents a term which has already been encoded, writers copy it verbatim instead of encoding it again. This
+ * allows a term which is sent in many messages to be encoded only once.
+ *
+ * @see com.austinv11.etf.writing.ETFWriter#toRawTerm()
+ * @see com.austinv11.etf.parsing.ETFParser#nextRawTerm()
+ */
+public class RawTerm implements ErlangObject {
+
+    private final byte[] data;
+
+    /**
+     * Creates a raw term without validating it.
+     *
+     * @param data The encoded term, without a version byte. This is not copied so it must not be modified afterwards.
+     */
+    public RawTerm(byte[] data) {
+        this(data, false);
+    }
+
+    /**
+     * Creates a raw term.
+     *
+     * @param data The encoded term, without a version byte. This is not copied so it must not be modified afterwards.
+     * @param validate Whether to check that the data is exactly one complete term.
+     *
+     * @throws ETFException When validating and the data isn't exactly one complete term.
+     */
+    public RawTerm(byte[] data, boolean validate) {
+        if (data.length == 0)
+            throw new ETFException("Raw terms can't be empty!");
+        if (Byte.toUnsignedInt(data[0]) == ETFConstants.VERSION)
+            throw new ETFException("Raw terms must not include a version byte!");
+
+        if (validate) {
+            ETFParser parser = new ETFParser(data, new ETFConfig(), true);
+            parser.skip();
+            if (!parser.isFinished())
+                throw new ETFException("Raw term has " + (data.length - parser.getPosition()) + " trailing bytes!")
+                        .withData(data, parser.getPosition());
+        }
+
+        this.data = data;
+    }
+
+    /**
+     * This gets the encoded term, this is not copied so it must not be modified.
+     *
+     * @return The encoded term.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * This gets a read-only view of the encoded term.
+     *
+     * @return The encoded term.
+     */
+    public ByteBuffer asBuffer() {
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    /**
+     * This gets the size of the encoded term.
+     *
+     * @return The size in bytes.
+     */
+    public int size() {
+        return data.length;
+    }
+
+    @Override
+    public byte type() {
+        return data[0];
+    }
+}
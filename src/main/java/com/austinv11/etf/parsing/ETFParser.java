@@ -6,9 +6,13 @@ import com.austinv11.etf.util.BertCompatible;
 import com.austinv11.etf.util.ETFException;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.zip.Inflater;
 
@@ -24,6 +28,12 @@ public class ETFParser {
     private final int expectedVersion;
     private final boolean bert;
     private final boolean loqui;
+    private final int maxDepth;
+    private Frame[] frames = new Frame[8];
+    private int depth = 0;
+
+    //Marks a container which still needs its elements read
+    private static final Object PENDING = new Object();
 
     public ETFParser(byte[] data, ETFConfig config) {
         this(data, config, false);
@@ -33,14 +43,14 @@ public class ETFParser {
         this.expectedVersion = config.getVersion();
         this.bert = config.isBert();
         this.loqui = config.isLoqui();
+        this.maxDepth = config.getMaxDepth();
 
         int initialOffset = 0;
         if (Byte.toUnsignedInt(data[initialOffset]) == expectedVersion) //Skip the version number
             initialOffset++;
 
-        if (!partial && config.isIncludingHeader()) {
-            if (data[initialOffset] != HEADER)
-                throw new ETFException("Missing header! Is this data malformed?").withData(data, initialOffset);
+        //Writers skip compression for small messages (or ones which don't compress well) so the header is optional
+        if (!partial && config.isIncludingHeader() && data[initialOffset] == HEADER) {
             initialOffset++;
 
             long uncompressedSize = wrap(data, initialOffset, 4).getInt();
@@ -54,13 +64,28 @@ public class ETFParser {
                 byte[] buffer = new byte[1024];
                 while (inflater.getBytesWritten() != uncompressedSize) {
                     int count = inflater.inflate(buffer);
+                    if (count == 0) {
+                        if (inflater.needsDictionary()) { //Compressed with a preset dictionary
+                            byte[] dictionary = config.getCompressionDictionary(inflater.getAdler());
+                            if (dictionary == null)
+                                throw new ETFException("No compression dictionary is registered with id "
+                                        + Integer.toHexString(inflater.getAdler()) + "!");
+                            inflater.setDictionary(dictionary);
+                        } else if (inflater.finished() || inflater.needsInput()) {
+                            throw new ETFException("Compressed data ended after " + inflater.getBytesWritten()
+                                    + " of " + uncompressedSize + " bytes!");
+                        }
+                    }
                     outputStream.write(buffer, 0, count);
                 }
-                inflater.end();
                 outputStream.close();
                 this.data = outputStream.toByteArray();
+            } catch (ETFException e) {
+                throw e.withData(data, initialOffset);
             } catch (Exception e) {
                 throw new ETFException(e).withData(data, initialOffset);
+            } finally {
+                inflater.end();
             }
         } else {
             this.data = data;
@@ -422,6 +447,73 @@ public class ETFParser {
         return new String(Arrays.copyOfRange(data, offset, (offset += len)));
     }
 
+    /**
+     * This gets the next binary's bytes without decoding them as a string.
+     *
+     * @return The binary's bytes.
+     */
+    @BertCompatible
+    public byte[] nextBinaryBytes() {
+        checkPreconditions(BINARY_EXT);
+
+        int len = nextBinaryLength();
+        return Arrays.copyOfRange(data, offset, (offset += len));
+    }
+
+    /**
+     * This transfers the next binary's bytes directly to a stream without copying them into an intermediate array.
+     *
+     * @param out The stream to write the binary to.
+     * @return The number of bytes transferred.
+     */
+    @BertCompatible
+    public long nextBinary(OutputStream out) {
+        checkPreconditions(BINARY_EXT);
+
+        int len = nextBinaryLength();
+        try {
+            out.write(data, offset, len);
+        } catch (IOException e) {
+            throw new ETFException(e).withData(data, offset);
+        }
+        offset += len;
+
+        return len;
+    }
+
+    /**
+     * This transfers the next binary's bytes directly to a channel without copying them into an intermediate array.
+     *
+     * @param channel The channel to write the binary to.
+     * @return The number of bytes transferred.
+     */
+    @BertCompatible
+    public long nextBinary(WritableByteChannel channel) {
+        checkPreconditions(BINARY_EXT);
+
+        int len = nextBinaryLength();
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, len);
+        try {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        } catch (IOException e) {
+            throw new ETFException(e).withData(data, offset);
+        }
+        offset += len;
+
+        return len;
+    }
+
+    private int nextBinaryLength() {
+        long len = Integer.toUnsignedLong(wrap(data, offset, 4).getInt());
+        offset += 4;
+
+        if (len > data.length - offset)
+            throw new ETFException("Binary length " + len + " exceeds the remaining data!").withData(data, offset);
+
+        return (int) len;
+    }
+
     /**
      * This gets the next bitstring.
      *
@@ -463,7 +555,8 @@ public class ETFParser {
         char len = wrap(data, offset, 2).getChar(); //Because we don't have unsigned shorts
         offset += 2;
 
-        return new String(Arrays.copyOfRange(data, offset, (offset += len)));
+        //Each byte is an element of the list, so a char must have the same value as its byte
+        return new String(Arrays.copyOfRange(data, offset, (offset += len)), StandardCharsets.ISO_8859_1);
     }
 
     /**
@@ -553,15 +646,6 @@ public class ETFParser {
         }
     }
 
-    private Tuple findTuple(long arity) {
-        Object[] data = new Object[(int)arity];
-        for (int i = 0; i < arity; i++) {
-            data[i] = next();
-        }
-
-        return new Tuple(data);
-    }
-
     /**
      * Gets the next small tuple.
      *
@@ -570,7 +654,7 @@ public class ETFParser {
     public Tuple nextSmallTuple() {
         checkPreconditions(SMALL_TUPLE_EXT);
 
-        return findTuple(Byte.toUnsignedInt(data[offset++]));
+        return (Tuple) nextContainer(SMALL_TUPLE_EXT, Byte.toUnsignedInt(data[offset++]));
     }
 
     /**
@@ -582,12 +666,7 @@ public class ETFParser {
     public Tuple nextLargeTuple() {
         checkPreconditions(LARGE_TUPLE_EXT);
 
-        long arity = Integer.toUnsignedLong(wrap(data, offset, 4).getInt());
-        offset += 4;
-        
-        Tuple tuple = findTuple(arity);
-
-        return tuple;
+        return (Tuple) nextContainer(LARGE_TUPLE_EXT, nextArity());
     }
 
     /**
@@ -615,15 +694,7 @@ public class ETFParser {
     public ErlangMap nextMap() {
         checkPreconditions(MAP_EXT);
 
-        long arity = Integer.toUnsignedLong(wrap(data, offset, 4).getInt());
-        offset += 4;
-
-        Map<Object, Object> map = new HashMap<>();
-        for (long i = 0; i < arity; i++) {
-            map.put(next(), next());
-        }
-
-        return new ErlangMap(map);
+        return (ErlangMap) nextContainer(MAP_EXT, nextArity());
     }
 
     /**
@@ -668,23 +739,88 @@ public class ETFParser {
     public ErlangList nextList() {
         checkPreconditions(LIST_EXT);
 
-        long len = Integer.toUnsignedLong(wrap(data, offset, 4).getInt());
-        offset += 4;
+        return (ErlangList) nextContainer(LIST_EXT, nextArity());
+    }
 
-        Object[] list = new Object[(int) len];
-        for (int i = 0; i < len; i++) {
-            list[i] = next();
-        }
+    /**
+     * Gets the header of the next map, so that its keys and values can be read (or skipped) one term at a time rather
+     * than decoding the whole map.
+     *
+     * @return The number of key/value pairs which follow.
+     */
+    @BertCompatible
+    public int nextMapHeader() {
+        checkPreconditions(MAP_EXT);
 
-        Object tail;
-        if (isNil()) { //Proper list
-            nextNil();
-            tail = null;
-        } else {
-            tail = next();
+        return nextHeaderArity(2);
+    }
+
+    /**
+     * Gets the next map key if it is one of a set of known keys, without decoding it into a string. Atoms, binaries
+     * and strings are matched by their encoded bytes, other keys are never known. The key is always read, unknown
+     * ones included, so its value comes next.
+     *
+     * @param keys The known keys.
+     * @param expected The index of the key which is most likely to come next (i.e. the one after the previous key),
+     *                 which is checked first.
+     * @return The index of the key, or -1 when it isn't known.
+     */
+    @BertCompatible
+    public int nextKey(KeyMatcher keys, int expected) {
+        byte type = peek();
+
+        int length;
+        boolean latin1 = false;
+        switch (type) {
+            case SMALL_ATOM_EXT:
+            case SMALL_ATOM_UTF8_EXT:
+                latin1 = type == SMALL_ATOM_EXT;
+                offset++;
+                length = Byte.toUnsignedInt(data[offset++]);
+                break;
+            case ATOM_EXT:
+            case STRING_EXT:
+            case ATOM_UTF8_EXT:
+                latin1 = type != ATOM_UTF8_EXT;
+                offset++;
+                length = wrap(data, offset, 2).getChar(); //Because we don't have unsigned shorts
+                offset += 2;
+                break;
+            case BINARY_EXT:
+                offset++;
+                length = nextBinaryLength();
+                break;
+            default:
+                skip();
+                return -1;
         }
 
-        return new ErlangList(list, tail);
+        if (length > data.length - offset)
+            throw new ETFException("Term extends past the end of the data!").withData(data, offset);
+
+        int start = offset;
+        offset += length;
+        return latin1 ? keys.matchLatin1(data, start, length, expected) : keys.match(data, start, length, expected);
+    }
+
+    /**
+     * Gets the header of the next list, so that its elements can be read (or skipped) one term at a time rather than
+     * decoding the whole list. The elements are followed by the list's tail, which is nil for proper lists.
+     *
+     * @return The number of elements which follow, not including the tail.
+     */
+    @BertCompatible
+    public int nextListHeader() {
+        checkPreconditions(LIST_EXT);
+
+        return nextHeaderArity(1);
+    }
+
+    private int nextHeaderArity(int termsPerElement) {
+        long arity = nextArity();
+        if (arity * termsPerElement > data.length - offset) //Every term is at least a byte
+            throw new ETFException("Term arity " + arity + " is too large!").withData(data, offset);
+        return (int) arity;
     }
 
     private long nextBig(long len) {
@@ -748,6 +884,22 @@ public class ETFParser {
         }
     }
 
+    /**
+     * Gets the next integer or big number, whichever encoding was used to fit it.
+     *
+     * @return The long.
+     */
+    @BertCompatible
+    public long nextLong() {
+        byte type = peek();
+
+        if (type == SMALL_INTEGER_EXT || type == INTEGER_EXT) {
+            return nextInt();
+        } else {
+            return nextBigNumber();
+        }
+    }
+
     /**
      * Gets the next old reference object.
      *
@@ -872,6 +1024,38 @@ public class ETFParser {
         }
     }
 
+    /**
+     * This skips the next term without decoding it, this is much cheaper than {@link #next()} for terms which aren't
+     * needed.
+     *
+     * @return The number of bytes skipped.
+     */
+    public int skip() {
+        if (isFinished())
+            throw new ETFException("No more data to read!").withData(data, offset);
+
+        skipVersion();
+        int start = offset;
+        try {
+            offset = TermSkipper.skip(ByteBuffer.wrap(data), offset, data.length);
+        } catch (ETFException e) {
+            throw e.withData(data, start);
+        }
+        return offset - start;
+    }
+
+    /**
+     * This gets the next term without decoding it, so that it can be written again as-is.
+     *
+     * @return The next term, still encoded.
+     */
+    public RawTerm nextRawTerm() {
+        skipVersion();
+        int start = offset;
+        skip();
+        return new RawTerm(Arrays.copyOfRange(data, start, offset));
+    }
+
     /**
      * This gets the next generic term.
      *
@@ -879,6 +1063,133 @@ public class ETFParser {
      */
     @BertCompatible
     public Object next() {
+        int base = depth;
+        try {
+            return drain(base, PENDING);
+        } catch (RuntimeException e) {
+            unwind(base);
+            throw e;
+        }
+    }
+
+    private Object nextContainer(byte type, long arity) {
+        int base = depth;
+        try {
+            return drain(base, open(type, arity));
+        } catch (RuntimeException e) {
+            unwind(base);
+            throw e;
+        }
+    }
+
+    //Reads terms until the stack unwinds back to base, containers are decoded with an explicit stack rather than
+    //recursion so deeply nested terms can't overflow the call stack
+    private Object drain(int base, Object value) {
+        while (true) {
+            if (value == PENDING)
+                value = nextTerm();
+
+            if (value == PENDING) //A container was opened, so its elements come next
+                continue;
+
+            if (depth == base)
+                return value;
+
+            value = accept(frames[depth - 1], value);
+        }
+    }
+
+    private void unwind(int base) {
+        while (depth > base)
+            frames[--depth].clear();
+    }
+
+    private long nextArity() {
+        long arity = Integer.toUnsignedLong(wrap(data, offset, 4).getInt());
+        offset += 4;
+        return arity;
+    }
+
+    private Object open(byte type, long arity) {
+        if (depth >= maxDepth)
+            throw new ETFException("Maximum nesting depth of " + maxDepth + " exceeded!").withData(data, offset);
+
+        if (arity > Integer.MAX_VALUE)
+            throw new ETFException("Term arity " + arity + " is too large!").withData(data, offset);
+
+        if (depth == frames.length)
+            frames = Arrays.copyOf(frames, depth * 2);
+
+        Frame frame = frames[depth];
+        if (frame == null)
+            frame = frames[depth] = new Frame();
+        depth++;
+
+        frame.type = type;
+        frame.length = (int) arity;
+        if (type == MAP_EXT)
+            frame.map = new HashMap<>();
+        else
+            frame.values = new Object[(int) arity];
+
+        return advance(frame);
+    }
+
+    private Object accept(Frame frame, Object value) {
+        if (frame.awaitingTail) {
+            frame.tail = value;
+            return close(frame);
+        }
+
+        if (frame.type == MAP_EXT) {
+            if (!frame.hasKey) {
+                frame.key = value;
+                frame.hasKey = true;
+                return PENDING;
+            }
+            frame.map.put(frame.key, value);
+            frame.key = null;
+            frame.hasKey = false;
+            frame.index++;
+        } else {
+            frame.values[frame.index++] = value;
+        }
+
+        return advance(frame);
+    }
+
+    private Object advance(Frame frame) {
+        if (frame.index < frame.length)
+            return PENDING;
+
+        if (frame.type == LIST_EXT) {
+            if (isNil()) { //Proper list
+                nextNil();
+            } else {
+                frame.awaitingTail = true;
+                return PENDING;
+            }
+        }
+
+        return close(frame);
+    }
+
+    private Object close(Frame frame) {
+        Object term;
+        if (frame.type == MAP_EXT)
+            term = new ErlangMap(frame.map);
+        else if (frame.type == LIST_EXT)
+            term = new ErlangList(frame.values, frame.tail);
+        else
+            term = new Tuple(frame.values);
+
+        frame.clear();
+        depth--;
+        return term;
+    }
+
+    //Reads a single term, opening (but not filling) any container it finds
+    private Object nextTerm() {
         switch (peek()) {
             case HEADER:
                 throw new ETFException("Nested header found! Is the data malformed?").withData(data, offset);
@@ -901,18 +1212,22 @@ public class ETFParser {
             case PID_EXT:
                 return nextPID();
             case SMALL_TUPLE_EXT:
-                return nextSmallTuple();
+                checkPreconditions(SMALL_TUPLE_EXT);
+                return open(SMALL_TUPLE_EXT, Byte.toUnsignedInt(data[offset++]));
             case LARGE_TUPLE_EXT:
-                return nextLargeTuple();
+                checkPreconditions(LARGE_TUPLE_EXT);
+                return open(LARGE_TUPLE_EXT, nextArity());
             case MAP_EXT:
-                return nextMap();
+                checkPreconditions(MAP_EXT);
+                return open(MAP_EXT, nextArity());
             case NIL_EXT:
                 nextNil();
                 return null;
             case STRING_EXT:
                 return nextErlangString();
             case LIST_EXT:
-                return nextList();
+                checkPreconditions(LIST_EXT);
+                return open(LIST_EXT, nextArity());
             case BINARY_EXT:
                 return nextBinary();
             case SMALL_BIG_EXT:
@@ -969,6 +1284,29 @@ public class ETFParser {
         return builder.toString();
     }
 
+    //Internal use only, a partially decoded tuple, list or map
+    private static class Frame {
+        byte type;
+        int length;
+        int index;
+        Object[] values;
+        Map<Object, Object> map;
+        Object key;
+        boolean hasKey;
+        boolean awaitingTail;
+        Object tail;
+
+        void clear() {
+            index = 0;
+            values = null;
+            map = null;
+            key = null;
+            hasKey = false;
+            awaitingTail = false;
+            tail = null;
+        }
+    }
+
     //Internal use only, we don't actually provide a Node object
     private class Node {
         final String atom;
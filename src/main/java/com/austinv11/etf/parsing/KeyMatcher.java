@@ -0,0 +1,110 @@
+package com.austinv11.etf.parsing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This matches the encoded keys of a map against a fixed set of known keys (i.e. the names of an object's properties)
+ * without decoding them into strings, see {@link ETFParser#nextKey(KeyMatcher, int)}.
+ *
+ * Keys are compared as UTF-8 bytes. The key which is expected next is checked first, since maps written from objects
+ * have their keys in the same order every time, and the rest are found through a hash table of the keys' bytes. This
+ * is safe to share between threads.
+ */
+public final class KeyMatcher {
+
+    private final String[] keys;
+    private final byte[][] encoded;
+    private final int[] table; //Indexes of the keys plus one, 0 for empty slots
+    private final Map<String, Integer> indexes = new HashMap<>(); //For latin-1 keys which aren't ascii
+
+    /**
+     * Creates a key matcher.
+     *
+     * @param keys The known keys, their indexes are what keys are matched to. The expected order is their order here.
+     */
+    public KeyMatcher(String... keys) {
+        this.keys = keys.clone();
+        this.encoded = new byte[keys.length][];
+        this.table = new int[Integer.highestOneBit(Math.max(keys.length, 1) * 4 - 1)]; //At most half full
+        for (int i = 0; i < keys.length; i++) {
+            if (indexes.putIfAbsent(keys[i], i) != null)
+                continue; //The first key with a name wins
+
+            encoded[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+            int slot = hash(encoded[i], 0, encoded[i].length) & (table.length - 1);
+            while (table[slot] != 0)
+                slot = (slot + 1) & (table.length - 1);
+            table[slot] = i + 1;
+        }
+    }
+
+    /**
+     * This gets the number of known keys.
+     *
+     * @return The number of keys.
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * This gets a known key.
+     *
+     * @param index The key's index.
+     * @return The key.
+     */
+    public String getKey(int index) {
+        return keys[index];
+    }
+
+    private static int hash(byte[] data, int offset, int length) {
+        int hash = length;
+        for (int i = offset; i < offset + length; i++)
+            hash = 31 * hash + data[i];
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean matches(int index, byte[] data, int offset, int length) {
+        byte[] key = encoded[index];
+        if (key == null || key.length != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (key[i] != data[offset + i])
+                return false;
+        }
+        return true;
+    }
+
+    //Finds the index of a key's UTF-8 bytes, or -1 if it isn't known
+    int match(byte[] data, int offset, int length, int expected) {
+        if (expected >= 0 && expected < keys.length && matches(expected, data, offset, length))
+            return expected;
+
+        int slot = hash(data, offset, length) & (table.length - 1);
+        while (table[slot] != 0) {
+            if (matches(table[slot] - 1, data, offset, length))
+                return table[slot] - 1;
+            slot = (slot + 1) & (table.length - 1);
+        }
+        return -1;
+    }
+
+    //Finds the index of a key's latin-1 bytes, or -1 if it isn't known
+    int matchLatin1(byte[] data, int offset, int length, int expected) {
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] < 0) { //Only ascii is encoded the same way in UTF-8
+                Integer index = indexes.get(new String(data, offset, length, StandardCharsets.ISO_8859_1));
+                return index == null ? -1 : index;
+            }
+        }
+        return match(data, offset, length, expected);
+    }
+
+    @Override
+    public String toString() {
+        return "KeyMatcher" + Arrays.toString(keys);
+    }
+}
@@ -0,0 +1,149 @@
+package com.austinv11.etf.parsing;
+
+import com.austinv11.etf.util.ETFException;
+
+import java.nio.ByteBuffer;
+
+import static com.austinv11.etf.common.TermTypes.*;
+
+/**
+ * This finds where encoded terms end without decoding them. Nested terms are counted rather than parsed so this is
+ * much cheaper than parsing, and it can't overflow the stack on deeply nested terms.
+ */
+public final class TermSkipper {
+
+    private TermSkipper() {}
+
+    /**
+     * This finds the end of the term starting at an offset.
+     *
+     * @param data The encoded data, this is read with absolute gets so its position is not changed.
+     * @param offset The offset of the term's tag.
+     * @param limit The offset past which the term can't extend.
+     * @return The offset just after the term.
+     *
+     * @throws ETFException When the term is malformed or extends past the limit.
+     */
+    public static int skip(ByteBuffer data, int offset, int limit) {
+        Cursor cursor = new Cursor(data, offset, limit);
+        long pending = 1; //Terms left to skip
+        while (pending > 0) {
+            if (pending > limit - cursor.offset) //Every term is at least a byte
+                throw cursor.pastEnd();
+
+            pending--;
+            byte type = data.get(cursor.offset);
+            cursor.advance(1);
+            switch (type) {
+                case ATOM_CACHE_REF:
+                case SMALL_INTEGER_EXT:
+                    cursor.advance(1);
+                    break;
+                case INTEGER_EXT:
+                    cursor.advance(4);
+                    break;
+                case FLOAT_EXT:
+                    cursor.advance(31);
+                    break;
+                case NEW_FLOAT_EXT:
+                    cursor.advance(8);
+                    break;
+                case ATOM_EXT:
+                case ATOM_UTF8_EXT:
+                case STRING_EXT:
+                    cursor.advance(cursor.length(2));
+                    break;
+                case SMALL_ATOM_EXT:
+                case SMALL_ATOM_UTF8_EXT:
+                    cursor.advance(cursor.length(1));
+                    break;
+                case BINARY_EXT:
+                    cursor.advance(cursor.length(4));
+                    break;
+                case BIT_BINARY_EXT:
+                    cursor.advance(cursor.length(4) + 1);
+                    break;
+                case SMALL_BIG_EXT:
+                    cursor.advance(cursor.length(1) + 1);
+                    break;
+                case LARGE_BIG_EXT:
+                    cursor.advance(cursor.length(4) + 1);
+                    break;
+                case NIL_EXT:
+                    break;
+                case SMALL_TUPLE_EXT:
+                    pending += cursor.length(1);
+                    break;
+                case LARGE_TUPLE_EXT:
+                    pending += cursor.length(4);
+                    break;
+                case MAP_EXT:
+                    pending += 2 * cursor.length(4);
+                    break;
+                case LIST_EXT:
+                    pending += cursor.length(4) + 1; //Includes the tail
+                    break;
+                case PID_EXT:
+                    cursor.offset = skip(data, cursor.offset, limit); //Node
+                    cursor.advance(9);
+                    break;
+                case PORT_EXT:
+                case REFERENCE_EXT:
+                    cursor.offset = skip(data, cursor.offset, limit); //Node
+                    cursor.advance(5);
+                    break;
+                case NEW_REFERENCE_EXT:
+                    long ids = cursor.length(2);
+                    cursor.offset = skip(data, cursor.offset, limit); //Node
+                    cursor.advance(1 + 4 * ids);
+                    break;
+                case EXPORT_EXT:
+                    pending += 3; //Module, function and arity
+                    break;
+                case NEW_FUN_EXT:
+                    cursor.advance(cursor.length(4) - 4); //The size includes itself
+                    break;
+                case FUN_EXT:
+                    pending += 4 + cursor.length(4); //Pid, module, index, uniq and the free variables
+                    break;
+                case HEADER:
+                    throw new ETFException("Nested header found at " + (cursor.offset - 1) + "! Is the data malformed?");
+                default:
+                    throw new ETFException("Unidentified type " + type + " at " + (cursor.offset - 1) + " is the data malformed?");
+            }
+        }
+        return cursor.offset;
+    }
+
+    private static class Cursor {
+
+        final ByteBuffer data;
+        final int limit;
+        int offset;
+
+        Cursor(ByteBuffer data, int offset, int limit) {
+            this.data = data;
+            this.offset = offset;
+            this.limit = limit;
+        }
+
+        void advance(long bytes) {
+            if (bytes < 0 || bytes > limit - offset)
+                throw pastEnd();
+            offset += bytes;
+        }
+
+        //Reads an unsigned big-endian length of the given number of bytes
+        long length(int bytes) {
+            advance(bytes);
+            long length = 0;
+            for (int i = offset - bytes; i < offset; i++)
+                length = (length << 8) | Byte.toUnsignedInt(data.get(i));
+            return length;
+        }
+
+        ETFException pastEnd() {
+            return new ETFException("Term extends past the end of the data at " + offset + "!");
+        }
+    }
+}
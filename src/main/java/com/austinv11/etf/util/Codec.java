@@ -0,0 +1,33 @@
+package com.austinv11.etf.util;
+
+import com.austinv11.etf.parsing.ETFParser;
+import com.austinv11.etf.writing.ETFWriter;
+
+/**
+ * This represents an encoder and decoder for a single class, these are generated for classes annotated with
+ * {@link GenerateCodec} and are used by {@link Mapper} instead of reflection.
+ *
+ * @param <T> The class this handles.
+ */
+public interface Codec<T> {
+	
+	/**
+	 * This writes an object as a map of its properties.
+	 * 
+	 * @param mapper The mapper, which writes property values the codec doesn't handle itself.
+	 * @param writer The writer to write to.
+	 * @param value The object.
+	 * @param depth How deeply nested the object is.
+	 */
+	void encode(Mapper mapper, ETFWriter writer, T value, int depth);
+	
+	/**
+	 * This reads the next map into a new object, the values of unknown keys are skipped.
+	 * 
+	 * @param mapper The mapper, which reads property values the codec doesn't handle itself.
+	 * @param parser The parser to read from.
+	 * @param depth How deeply nested the object is.
+	 * @return The object.
+	 */
+	T decode(Mapper mapper, ETFParser parser, int depth);
+}
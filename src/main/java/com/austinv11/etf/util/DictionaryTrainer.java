@@ -0,0 +1,195 @@
+package com.austinv11.etf.util;
+
+import com.austinv11.etf.parsing.TermSkipper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Adler32;
+
+import static com.austinv11.etf.common.TermTypes.*;
+
+/**
+ * This builds a preset compression dictionary (see
+ * {@link com.austinv11.etf.ETFConfig#setCompressionDictionary(byte[])}) from a sample of encoded messages.
+ *
+ * Messages usually share far more than zlib can find on its own in a single small message, i.e. the atoms and the
+ * binaries used as map keys. The trainer collects these from the samples, encoded exactly as they appear in messages,
+ * and keeps the ones which save the most. The most valuable ones are placed at the end of the dictionary, since zlib
+ * can refer to those with the shortest distances.
+ */
+public class DictionaryTrainer {
+
+    /**
+     * The default maximum size of a dictionary.
+     */
+    public static final int DEFAULT_SIZE = 16 * 1024;
+
+    private static final int MAX_TOKEN_SIZE = 64; //Larger binaries are unlikely to repeat
+
+    private final Map<ByteBuffer, Token> tokens = new HashMap<>();
+    private int samples = 0;
+
+    /**
+     * This adds an encoded message to the sample.
+     *
+     * @param message The message, with or without its version byte. It must not be compressed.
+     * @return The current trainer instance (for chaining).
+     *
+     * @throws ETFException When the message is compressed or malformed.
+     */
+    public DictionaryTrainer addSample(byte[] message) {
+        ByteBuffer data = ByteBuffer.wrap(message);
+        int offset = message.length > 0 && Byte.toUnsignedInt(message[0]) == ETFConstants.VERSION ? 1 : 0;
+        if (offset < message.length && message[offset] == HEADER)
+            throw new ETFException("Samples must not be compressed!");
+
+        samples++;
+        //Terms are written depth first, so every term (including nested ones) starts right after the previous
+        //term's header or scalar
+        while (offset < message.length) {
+            int start = offset;
+            switch (message[offset]) {
+                case SMALL_ATOM_EXT:
+                case SMALL_ATOM_UTF8_EXT:
+                    offset += 2 + length(data, offset + 1, 1);
+                    record(message, start, offset);
+                    break;
+                case ATOM_EXT:
+                case ATOM_UTF8_EXT:
+                case STRING_EXT:
+                    offset += 3 + length(data, offset + 1, 2);
+                    record(message, start, offset);
+                    break;
+                case BINARY_EXT:
+                    offset += 5 + length(data, offset + 1, 4);
+                    record(message, start, offset);
+                    break;
+                case SMALL_TUPLE_EXT:
+                    offset += 2;
+                    break;
+                case LARGE_TUPLE_EXT:
+                case LIST_EXT:
+                case MAP_EXT:
+                    offset += 5;
+                    break;
+                case NIL_EXT:
+                    offset += 1;
+                    break;
+                default: //Scalars and rarer terms are skipped whole
+                    offset = TermSkipper.skip(data, offset, message.length);
+                    break;
+            }
+            if (offset > message.length || offset < start) //Overflowed
+                throw new ETFException("Term extends past the end of the data at " + start + "!")
+                        .withData(message, start);
+        }
+        return this;
+    }
+
+    private static int length(ByteBuffer data, int offset, int bytes) {
+        if (offset + bytes > data.limit())
+            throw new ETFException("Term extends past the end of the data at " + offset + "!");
+        switch (bytes) {
+            case 1:
+                return Byte.toUnsignedInt(data.get(offset));
+            case 2:
+                return Short.toUnsignedInt(data.getShort(offset));
+            default:
+                int length = data.getInt(offset);
+                if (length < 0)
+                    throw new ETFException("Length " + Integer.toUnsignedString(length) + " at " + offset + " is too large!");
+                return length;
+        }
+    }
+
+    private void record(byte[] message, int from, int to) {
+        if (to - from > MAX_TOKEN_SIZE || to > message.length)
+            return;
+
+        ByteBuffer key = ByteBuffer.wrap(message, from, to - from).slice();
+        Token token = tokens.get(key);
+        if (token == null) {
+            byte[] bytes = new byte[to - from];
+            System.arraycopy(message, from, bytes, 0, bytes.length);
+            token = new Token(bytes);
+            tokens.put(ByteBuffer.wrap(bytes), token);
+        }
+        token.occurrences++;
+        if (token.lastSample != samples) {
+            token.lastSample = samples;
+            token.samples++;
+        }
+    }
+
+    /**
+     * This builds a dictionary of at most {@link #DEFAULT_SIZE} bytes.
+     *
+     * @return The dictionary.
+     */
+    public byte[] train() {
+        return train(DEFAULT_SIZE);
+    }
+
+    /**
+     * This builds a dictionary from the samples added so far.
+     *
+     * @param maxSize The maximum size of the dictionary, zlib can't use more than 32KiB.
+     * @return The dictionary.
+     */
+    public byte[] train(int maxSize) {
+        List<Token> candidates = new ArrayList<>();
+        for (Token token : tokens.values()) {
+            if (token.samples > 1 || (samples == 1 && token.occurrences > 1)) //Only worth it if it repeats
+                candidates.add(token);
+        }
+        candidates.sort((a, b) -> Long.compare(b.score(), a.score()));
+
+        List<Token> chosen = new ArrayList<>();
+        int size = 0;
+        for (Token token : candidates) {
+            if (size + token.bytes.length > maxSize)
+                continue;
+            chosen.add(token);
+            size += token.bytes.length;
+        }
+
+        byte[] dictionary = new byte[size];
+        int offset = 0;
+        for (int i = chosen.size() - 1; i >= 0; i--) { //Most valuable last
+            byte[] bytes = chosen.get(i).bytes;
+            System.arraycopy(bytes, 0, dictionary, offset, bytes.length);
+            offset += bytes.length;
+        }
+        return dictionary;
+    }
+
+    /**
+     * This gets the id of a dictionary, which is the id zlib records in data compressed with the dictionary.
+     *
+     * @param dictionary The dictionary.
+     * @return The dictionary's id.
+     */
+    public static int getId(byte[] dictionary) {
+        Adler32 adler = new Adler32();
+        adler.update(dictionary);
+        return (int) adler.getValue();
+    }
+
+    private static class Token {
+        final byte[] bytes;
+        long occurrences = 0;
+        int samples = 0;
+        int lastSample = 0;
+
+        Token(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long score() {
+            return occurrences * bytes.length;
+        }
+    }
+}
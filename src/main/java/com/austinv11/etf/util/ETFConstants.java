@@ -2,4 +2,5 @@ package com.austinv11.etf.util;
 
 public class ETFConstants {
     public final static int VERSION = 131; //The spec version this supports
+    public final static int DEFAULT_MAX_DEPTH = 1024; //The default limit for how deeply terms may be nested
 }
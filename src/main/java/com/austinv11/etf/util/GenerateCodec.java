@@ -0,0 +1,19 @@
+package com.austinv11.etf.util;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marker annotation for a class which should have a {@link Codec} generated for it at compile time, this requires the
+ * annotation processor (com.austinv11.etf.processor.CodecProcessor) to be on the annotation processor path.
+ * 
+ * The codec is named after the class, i.e. com.example.Outer.Inner gets com.example.Outer_Inner_ETFCodec, and is
+ * picked up by {@link Mapper} automatically. The class must have a non-private no-arg constructor and every property
+ * must be readable (and writable, unless it is final) through non-private fields or accessor methods.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface GenerateCodec {
+}
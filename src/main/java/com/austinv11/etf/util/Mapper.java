@@ -5,10 +5,13 @@ import com.austinv11.etf.common.TermTypes;
 import com.austinv11.etf.erlang.ErlangList;
 import com.austinv11.etf.erlang.ErlangMap;
 import com.austinv11.etf.parsing.ETFParser;
+import com.austinv11.etf.parsing.KeyMatcher;
 import com.austinv11.etf.util.ReflectionUtils.PropertyManager;
+import com.austinv11.etf.util.ReflectionUtils.PropertyMetadata;
 import com.austinv11.etf.writing.ETFWriter;
 
 import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
 
@@ -17,6 +20,34 @@ import java.util.Map;
  */
 public class Mapper {
 	
+	//The generated codec of each class, if it has one
+	private static final ClassValue<Codec<?>> CODECS = new ClassValue<Codec<?>>() {
+		@Override
+		protected Codec<?> computeValue(Class<?> type) {
+			if (!type.isAnnotationPresent(GenerateCodec.class))
+				return null;
+			
+			String name = type.getName();
+			int packageEnd = name.lastIndexOf('.') + 1;
+			String codecName = name.substring(0, packageEnd) + name.substring(packageEnd).replace('$', '_') + "_ETFCodec";
+			try {
+				return (Codec<?>) Class.forName(codecName, true, type.getClassLoader()).getConstructor().newInstance();
+			} catch (ClassNotFoundException e) { //The annotation processor didn't run, so reflection is used instead
+				return null;
+			} catch (ReflectiveOperationException e) {
+				throw new ETFException(e);
+			}
+		}
+	};
+	
+	//The properties of each class which are read from maps, with a matcher for their names
+	private static final ClassValue<ReadableProperties> READABLE_PROPERTIES = new ClassValue<ReadableProperties>() {
+		@Override
+		protected ReadableProperties computeValue(Class<?> type) {
+			return new ReadableProperties(ReflectionUtils.getPropertiesByName(type));
+		}
+	};
+	
 	private ETFConfig config;
 	
 	public Mapper(ETFConfig config) {
@@ -24,7 +55,42 @@ public class Mapper {
 	}
 	
 	public <T> byte[] writeToMap(T obj) {
-		return config.createWriter().writeMap(obj).toBytes();
+		ETFWriter writer = config.createWriter();
+		Codec<Object> codec = getCodec(obj);
+		if (codec == null)
+			return writer.writeMap(obj).toBytes();
+		
+		writer.setMessageKind(obj.getClass());
+		codec.encode(this, writer, obj, 0);
+		return writer.toBytes();
+	}
+	
+	//Versioned objects are left to the writer when it caches their encodings
+	private Codec<Object> getCodec(Object obj) {
+		if (obj == null || (obj instanceof Versioned && config.getEncodingCache() != null))
+			return null;
+		@SuppressWarnings("unchecked") //The codec was generated for the object's class
+		Codec<Object> codec = (Codec<Object>) CODECS.get(obj.getClass());
+		return codec;
+	}
+	
+	/**
+	 * This writes a value, with its class's generated codec if it has one. This is meant for generated codecs.
+	 * 
+	 * @param writer The writer to write to.
+	 * @param value The value.
+	 * @param depth How deeply nested the value is.
+	 */
+	public void writeValue(ETFWriter writer, Object value, int depth) {
+		Codec<Object> codec = getCodec(value);
+		if (codec == null) {
+			writer.write(value);
+			return;
+		}
+		
+		if (depth >= config.getMaxDepth())
+			throw new ETFException("Maximum nesting depth of " + config.getMaxDepth() + " exceeded!");
+		codec.encode(this, writer, value, depth);
 	}
 	
 	public <T> byte[] write(T obj) {
@@ -39,47 +105,168 @@ public class Mapper {
 		for (PropertyManager property : properties) {
 			if (data.containsKey(property.getName())) {
 				Object obj = data.get(property.getName());
-				if (obj instanceof ErlangMap) {
+				if (obj instanceof ErlangMap)
 					obj = read((ErlangMap) obj, property.getSetterType());
-				} else if (obj instanceof ErlangList && property.getSetterType().isArray()) {
-					if (((ErlangList) obj).size() > 0) {
-						Object array = Array.newInstance(property.getSetterType().getComponentType(), ((ErlangList) obj).size());
-						for (int i = 0; i < ((ErlangList) obj).size(); i++) {
-							Object obj1 = ((ErlangList) obj).get(i);
-							if (obj1 != null)
-								Array.set(array, i, obj1 instanceof ErlangMap ? read((ErlangMap) obj1, property.getSetterType().getComponentType()) : obj1);
-						}
-						obj = array;
-					} else
-						obj = Array.newInstance(property.getSetterType().getComponentType(), 0);
-				} else if (obj == null && property.getSetterType().isArray()) {
-					obj = Array.newInstance(property.getSetterType().getComponentType(), 0);
-				}
+				else
+					obj = convert(obj, property.getSetterType());
 				property.setValue(obj);
 			}
 		}
 		return instance;
 	}
 	
+	//Converts a decoded term to fit a property's type
+	private Object convert(Object obj, Class<?> type) {
+		if (obj instanceof ErlangList && type.isArray()) {
+			if (((ErlangList) obj).size() > 0) {
+				Object array = Array.newInstance(type.getComponentType(), ((ErlangList) obj).size());
+				for (int i = 0; i < ((ErlangList) obj).size(); i++) {
+					Object obj1 = ((ErlangList) obj).get(i);
+					if (obj1 != null)
+						Array.set(array, i, obj1 instanceof ErlangMap ? read((ErlangMap) obj1, type.getComponentType()) : convert(obj1, type.getComponentType()));
+				}
+				return array;
+			} else
+				return Array.newInstance(type.getComponentType(), 0);
+		} else if (obj instanceof String && type.isArray()
+				&& type.getComponentType() != String.class) { //Lists of bytes are sent as strings
+			String string = (String) obj;
+			Class<?> componentType = type.getComponentType();
+			if (componentType == byte.class)
+				return string.getBytes(StandardCharsets.ISO_8859_1); //Every char is a single byte
+			else if (componentType == char.class)
+				return string.toCharArray();
+			
+			Object array = Array.newInstance(componentType, string.length());
+			for (int i = 0; i < string.length(); i++) {
+				char c = string.charAt(i);
+				if (componentType == Character.class)
+					Array.set(array, i, c);
+				else if (componentType == boolean.class || componentType == Boolean.class)
+					Array.set(array, i, c != 0);
+				else
+					Array.set(array, i, convert((int) c, componentType));
+			}
+			return array;
+		} else if (obj == null && type.isArray()) {
+			return Array.newInstance(type.getComponentType(), 0);
+		} else if (obj instanceof Number && !type.isInstance(obj)) { //Numbers are sent in the smallest type that fits them
+			Number number = (Number) obj;
+			if (type == long.class || type == Long.class)
+				return number.longValue();
+			else if (type == int.class || type == Integer.class)
+				return number.intValue();
+			else if (type == short.class || type == Short.class)
+				return number.shortValue();
+			else if (type == byte.class || type == Byte.class)
+				return number.byteValue();
+			else if (type == double.class || type == Double.class)
+				return number.doubleValue();
+			else if (type == float.class || type == Float.class)
+				return number.floatValue();
+		}
+		return obj;
+	}
+	
 	public <T> T read(byte[] data, Class<T> clazz) {
 		ETFParser parser = config.createParser(data);
-		T instance = ReflectionUtils.createInstance(clazz);
-		List<PropertyManager> properties = ReflectionUtils.findProperties(instance, clazz);
 		if (parser.peek() == TermTypes.MAP_EXT) {
-			ErlangMap map = parser.nextMap();
 			if (Map.class.isAssignableFrom(clazz)) { //User wants a map so lets give it to them
-				return (T) map;
+				return (T) parser.nextMap();
 			} else {
-				return read(map, clazz);
+				return readObject(parser, clazz, 0);
 			}
 		} else {
+			T instance = ReflectionUtils.createInstance(clazz);
+			List<PropertyManager> properties = ReflectionUtils.findProperties(instance, clazz);
 			for (PropertyManager property : properties) {
 				if (parser.isFinished())
 					break;
 				
-				property.setValue(parser.next());
+				property.setValue(convert(parser.next(), property.getSetterType()));
 			}
 			return instance;
 		}
 	}
+	
+	//Decodes a map straight into a new instance as its entries are read, the values of unknown keys are skipped
+	//without being decoded
+	private <T> T readObject(ETFParser parser, Class<T> clazz, int depth) {
+		if (depth >= config.getMaxDepth())
+			throw new ETFException("Maximum nesting depth of " + config.getMaxDepth() + " exceeded!");
+		
+		@SuppressWarnings("unchecked") //The codec was generated for clazz
+		Codec<T> codec = (Codec<T>) CODECS.get(clazz);
+		if (codec != null)
+			return codec.decode(this, parser, depth);
+		
+		T instance = ReflectionUtils.createInstance(clazz);
+		ReadableProperties properties = READABLE_PROPERTIES.get(clazz);
+		int size = parser.nextMapHeader();
+		int expected = 0;
+		for (int i = 0; i < size; i++) {
+			int key = parser.nextKey(properties.keys, expected); //Keys are matched without decoding them
+			if (key < 0) {
+				parser.skip();
+				continue;
+			}
+			
+			expected = key + 1;
+			PropertyMetadata property = properties.properties[key];
+			property.setValue(instance, readValue(parser, property.getSetterType(), depth + 1));
+		}
+		return instance;
+	}
+	
+	/**
+	 * This reads the next term as a value of a type, objects are read with their class's generated codec if it has one.
+	 * This is meant for generated codecs.
+	 * 
+	 * @param parser The parser to read from.
+	 * @param type The type of the value.
+	 * @param depth How deeply nested the value is.
+	 * @return The value.
+	 */
+	public Object readValue(ETFParser parser, Class<?> type, int depth) {
+		byte next = parser.peek();
+		if (next == TermTypes.MAP_EXT && !type.isAssignableFrom(ErlangMap.class)) { //An object rather than a map
+			return readObject(parser, type, depth);
+		} else if (next == TermTypes.LIST_EXT && type.isArray()) {
+			return readArray(parser, type.getComponentType(), depth);
+		} else if (next == TermTypes.BINARY_EXT && type == byte[].class) { //Copied straight from the data
+			return parser.nextBinaryBytes();
+		} else {
+			return convert(parser.next(), type);
+		}
+	}
+	
+	//Decodes a list straight into an array
+	private Object readArray(ETFParser parser, Class<?> componentType, int depth) {
+		if (depth >= config.getMaxDepth())
+			throw new ETFException("Maximum nesting depth of " + config.getMaxDepth() + " exceeded!");
+		
+		int size = parser.nextListHeader();
+		Object array = Array.newInstance(componentType, size);
+		for (int i = 0; i < size; i++) {
+			if (parser.isNil()) { //Left as the default
+				parser.nextNil();
+				continue;
+			}
+			
+			Array.set(array, i, readValue(parser, componentType, depth + 1));
+		}
+		parser.skip(); //The tail
+		return array;
+	}
+	
+	private static class ReadableProperties {
+		
+		final PropertyMetadata[] properties;
+		final KeyMatcher keys;
+		
+		ReadableProperties(Map<String, PropertyMetadata> properties) {
+			this.properties = properties.values().toArray(new PropertyMetadata[0]);
+			this.keys = new KeyMatcher(properties.keySet().toArray(new String[0]));
+		}
+	}
 }
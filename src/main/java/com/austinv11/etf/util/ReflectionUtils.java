@@ -1,12 +1,18 @@
 package com.austinv11.etf.util;
 
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Internal class for reflection utilities.
@@ -28,17 +34,69 @@ public class ReflectionUtils {
 		UNSAFE = tempUnsafe;
 	}
 	
+	//The properties of each class, found the first time the class is read or written
+	private static final ClassValue<PropertyMetadata[]> PROPERTIES = new ClassValue<PropertyMetadata[]>() {
+		@Override
+		protected PropertyMetadata[] computeValue(Class<?> type) {
+			return scanProperties(type, type);
+		}
+	};
+	
+	//The properties of each class by name
+	private static final ClassValue<Map<String, PropertyMetadata>> PROPERTIES_BY_NAME = new ClassValue<Map<String, PropertyMetadata>>() {
+		@Override
+		protected Map<String, PropertyMetadata> computeValue(Class<?> type) {
+			Map<String, PropertyMetadata> properties = new LinkedHashMap<>(); //In the order they are written
+			for (PropertyMetadata property : PROPERTIES.get(type))
+				properties.putIfAbsent(property.getName(), property);
+			return properties;
+		}
+	};
+	
 	public static List<PropertyManager> findProperties(Object instance, Class clazz) {
 		if (clazz.isPrimitive())
 			return new ArrayList<>();
 		
-		List<PropertyManager> properties = new ArrayList<>();
+		PropertyMetadata[] metadata = getProperties(instance.getClass(), clazz);
+		List<PropertyManager> properties = new ArrayList<>(metadata.length);
+		for (PropertyMetadata property : metadata)
+			properties.add(new PropertyManager(instance, property));
+		return properties;
+	}
+	
+	/**
+	 * This gets the properties of a class, they are only looked up once per class.
+	 * 
+	 * @param instanceClass The class of the instances the properties are read from, this is where accessor methods are
+	 *                      looked up.
+	 * @param clazz The class whose fields are the properties.
+	 * @return The properties.
+	 */
+	public static PropertyMetadata[] getProperties(Class<?> instanceClass, Class<?> clazz) {
+		if (instanceClass == clazz)
+			return PROPERTIES.get(clazz);
+		else //Rare, so this isn't cached
+			return scanProperties(instanceClass, clazz);
+	}
+	
+	/**
+	 * This gets the properties of a class by name, they are only looked up once per class.
+	 * 
+	 * @param clazz The class.
+	 * @return The properties in the order they are written, this must not be modified.
+	 */
+	public static Map<String, PropertyMetadata> getPropertiesByName(Class<?> clazz) {
+		return PROPERTIES_BY_NAME.get(clazz);
+	}
+	
+	private static PropertyMetadata[] scanProperties(Class<?> instanceClass, Class<?> clazz) {
+		List<PropertyMetadata> properties = new ArrayList<>();
 		for (Field field : getAllFields(clazz)) {
 			if (!Modifier.isTransient(field.getModifiers()) && !Modifier.isStatic(field.getModifiers())) {
-				properties.add(new PropertyManager(instance, field));
+				properties.add(new PropertyMetadata(instanceClass, field));
 			}
 		}
-		return properties;
+		return properties.toArray(new PropertyMetadata[0]);
 	}
 	
 	public static List<Field> getAllFields(Class clazz) {
@@ -298,81 +356,407 @@ public class ReflectionUtils {
 		}
 	}
 	
-	public static class PropertyManager {
+	//Reads a property, these are generated once per property
+	interface Getter {
+		
+		Object get(Object instance) throws Throwable;
+		
+		//Primitive fields override these so they can be read without boxing
+		default int getInt(Object instance) throws Throwable {
+			return ((Number) get(instance)).intValue();
+		}
+		
+		default long getLong(Object instance) throws Throwable {
+			return ((Number) get(instance)).longValue();
+		}
+		
+		default double getDouble(Object instance) throws Throwable {
+			return ((Number) get(instance)).doubleValue();
+		}
+		
+		default boolean getBoolean(Object instance) throws Throwable {
+			return (Boolean) get(instance);
+		}
+	}
+	
+	//Writes a property, these are generated once per property
+	interface Setter {
+		
+		void set(Object instance, Object value) throws Throwable;
+	}
+	
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	
+	private static Class<?> box(Class<?> type) {
+		if (!type.isPrimitive())
+			return type;
+		else if (int.class.equals(type))
+			return Integer.class;
+		else if (long.class.equals(type))
+			return Long.class;
+		else if (double.class.equals(type))
+			return Double.class;
+		else if (float.class.equals(type))
+			return Float.class;
+		else if (byte.class.equals(type))
+			return Byte.class;
+		else if (char.class.equals(type))
+			return Character.class;
+		else if (boolean.class.equals(type))
+			return Boolean.class;
+		else if (short.class.equals(type))
+			return Short.class;
+		else
+			return Void.class;
+	}
+	
+	//Lambdas can only be spun for methods which are accessible and visible from this class
+	private static boolean canSpinLambda(Method method) {
+		Class<?> owner = method.getDeclaringClass();
+		if (!Modifier.isPublic(method.getModifiers()) || !Modifier.isPublic(owner.getModifiers()))
+			return false;
+		
+		try {
+			return Class.forName(owner.getName(), false, ReflectionUtils.class.getClassLoader()) == owner;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+	
+	private static Getter generateGetter(Method method) throws IllegalAccessException {
+		MethodHandle handle = LOOKUP.unreflect(method);
+		if (canSpinLambda(method)) {
+			try {
+				return (Getter) LambdaMetafactory.metafactory(LOOKUP, "get", MethodType.methodType(Getter.class),
+						MethodType.methodType(Object.class, Object.class), handle,
+						MethodType.methodType(box(method.getReturnType()), method.getDeclaringClass()))
+						.getTarget().invokeExact();
+			} catch (Throwable e) {
+				//Fall back to the method handle
+			}
+		}
+		
+		MethodHandle generic = handle.asType(MethodType.methodType(Object.class, Object.class));
+		return instance -> generic.invokeExact(instance);
+	}
+	
+	private static Setter generateSetter(Method method) throws IllegalAccessException {
+		MethodHandle handle = LOOKUP.unreflect(method);
+		if (canSpinLambda(method)) {
+			try {
+				return (Setter) LambdaMetafactory.metafactory(LOOKUP, "set", MethodType.methodType(Setter.class),
+						MethodType.methodType(void.class, Object.class, Object.class), handle,
+						MethodType.methodType(void.class, method.getDeclaringClass(), box(method.getParameterTypes()[0])))
+						.getTarget().invokeExact();
+			} catch (Throwable e) {
+				//Fall back to the method handle
+			}
+		}
+		
+		MethodHandle generic = handle.asType(MethodType.methodType(void.class, Object.class, Object.class));
+		return (instance, value) -> {
+			generic.invokeExact(instance, value); //A statement so the handle is invoked as returning void
+		};
+	}
+	
+	private static Getter generateGetter(Field field) throws IllegalAccessException {
+		if (UNSAFE != null) {
+			sun.misc.Unsafe unsafe = (sun.misc.Unsafe) UNSAFE;
+			long offset = unsafe.objectFieldOffset(field);
+			Class<?> type = field.getType();
+			if (int.class.equals(type)) {
+				return new Getter() {
+					public Object get(Object instance) { return unsafe.getInt(instance, offset); }
+					public int getInt(Object instance) { return unsafe.getInt(instance, offset); }
+				};
+			} else if (long.class.equals(type)) {
+				return new Getter() {
+					public Object get(Object instance) { return unsafe.getLong(instance, offset); }
+					public long getLong(Object instance) { return unsafe.getLong(instance, offset); }
+				};
+			} else if (double.class.equals(type)) {
+				return new Getter() {
+					public Object get(Object instance) { return unsafe.getDouble(instance, offset); }
+					public double getDouble(Object instance) { return unsafe.getDouble(instance, offset); }
+				};
+			} else if (float.class.equals(type)) {
+				return new Getter() {
+					public Object get(Object instance) { return unsafe.getFloat(instance, offset); }
+					public double getDouble(Object instance) { return unsafe.getFloat(instance, offset); }
+				};
+			} else if (byte.class.equals(type)) {
+				return new Getter() {
+					public Object get(Object instance) { return unsafe.getByte(instance, offset); }
+					public int getInt(Object instance) { return unsafe.getByte(instance, offset); }
+				};
+			} else if (char.class.equals(type)) {
+				return instance -> unsafe.getChar(instance, offset);
+			} else if (boolean.class.equals(type)) {
+				return new Getter() {
+					public Object get(Object instance) { return unsafe.getBoolean(instance, offset); }
+					public boolean getBoolean(Object instance) { return unsafe.getBoolean(instance, offset); }
+				};
+			} else if (short.class.equals(type)) {
+				return new Getter() {
+					public Object get(Object instance) { return unsafe.getShort(instance, offset); }
+					public int getInt(Object instance) { return unsafe.getShort(instance, offset); }
+				};
+			} else {
+				return instance -> unsafe.getObject(instance, offset);
+			}
+		}
+		
+		MethodHandle handle = LOOKUP.unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class));
+		return instance -> handle.invokeExact(instance);
+	}
+	
+	private static Setter generateSetter(Field field) throws IllegalAccessException {
+		if (UNSAFE != null) {
+			sun.misc.Unsafe unsafe = (sun.misc.Unsafe) UNSAFE;
+			long offset = unsafe.objectFieldOffset(field);
+			Class<?> type = field.getType();
+			if (int.class.equals(type)) {
+				return (instance, value) -> unsafe.putInt(instance, offset, (int) value);
+			} else if (long.class.equals(type)) {
+				return (instance, value) -> unsafe.putLong(instance, offset, (long) value);
+			} else if (double.class.equals(type)) {
+				return (instance, value) -> unsafe.putDouble(instance, offset, (double) value);
+			} else if (float.class.equals(type)) {
+				return (instance, value) -> unsafe.putFloat(instance, offset, (float) value);
+			} else if (byte.class.equals(type)) {
+				return (instance, value) -> unsafe.putByte(instance, offset, (byte) value);
+			} else if (char.class.equals(type)) {
+				return (instance, value) -> unsafe.putChar(instance, offset, (char) value);
+			} else if (boolean.class.equals(type)) {
+				return (instance, value) -> unsafe.putBoolean(instance, offset, (boolean) value);
+			} else if (short.class.equals(type)) {
+				return (instance, value) -> unsafe.putShort(instance, offset, (short) value);
+			} else {
+				return (instance, value) -> unsafe.putObject(instance, offset, value);
+			}
+		}
+		
+		MethodHandle handle = LOOKUP.unreflectSetter(field)
+				.asType(MethodType.methodType(void.class, Object.class, Object.class));
+		return (instance, value) -> {
+			handle.invokeExact(instance, value); //A statement so the handle is invoked as returning void
+		};
+	}
+	
+	/**
+	 * This represents how a property of a class is accessed, independent of any instance. The property's accessors
+	 * are generated once (as lambdas or method handles) so reading and writing it is a direct call rather than
+	 * reflection.
+	 */
+	public static class PropertyMetadata {
 		
-		private final Object instance;
-		private final IPropertyMutator mutator;
-		private final IPropertyAccessor accessor;
 		private final String name;
+		private final Field field;
+		private final Getter getter;
+		private final Setter setter; //Null for final fields without a setter
+		private final Class<?> getterType;
+		private final Class<?> setterType;
+		private final String getterName;
+		private final String setterName;
 		
 		private static String capitalize(String s) {
 			return s.substring(0, 1).toUpperCase() + (s.length() > 1 ? s.substring(1) : "");
 		}
 		
-		public PropertyManager(Object instance, Field field) {
-			this.instance = instance;
+		public PropertyMetadata(Class<?> instanceClass, Field field) {
 			field.setAccessible(true);
-			IPropertyAccessor accessor = null;
+			Method getter = null;
+			Method setter = null;
 			boolean isFinal = Modifier.isFinal(field.getModifiers());
-			IPropertyMutator mutator = isFinal ? NOPAccessorAndMutator.INSTANCE : null;
-			for (Method m : getAllMethods(instance.getClass())) {
-				if (mutator != null && accessor != null)
+			boolean hasMutator = isFinal;
+			String getterName = "get" + capitalize(field.getName());
+			String setterName = "set" + capitalize(field.getName());
+			for (Method m : getAllMethods(instanceClass)) {
+				if (hasMutator && getter != null)
 					break;
 				
-				m.setAccessible(true);
-				
-				if (m.getName().equals(String.format("get%s", capitalize(field.getName())))) {
-					accessor = new MethodAccessorAndMutator(instance, m);
+				if (m.getName().equals(getterName)) {
+					getter = m;
 					continue;
 				} else if (!isFinal
-						&& m.getName().equals(String.format("set%s", capitalize(field.getName())))
+						&& m.getName().equals(setterName)
 						&& m.getParameterCount() == 1 && m.getParameterTypes()[0].equals(field.getType())) {
-					mutator = new MethodAccessorAndMutator(instance, m);
+					setter = m;
+					hasMutator = true;
 					continue;
 				} else if (m.getDeclaredAnnotation(GetterMethod.class) != null) {
 					if (m.getDeclaredAnnotation(GetterMethod.class).value().equals(field.getName())) {
-						accessor = new MethodAccessorAndMutator(instance, m);
+						getter = m;
 						continue;
 					}
 				} else if (!isFinal && m.getDeclaredAnnotation(SetterMethod.class) != null
 						&& m.getParameterCount() == 1) {
 					if (m.getDeclaredAnnotation(SetterMethod.class).value().equals(field.getName())) {
-						mutator = new MethodAccessorAndMutator(instance, m);
+						setter = m;
+						hasMutator = true;
 						continue;
 					}
 				}
 			}
 			
-			if (accessor == null)
-				accessor = new FieldAccessorAndMutator(instance, field);
-			
-			if (mutator == null)
-				mutator = new FieldAccessorAndMutator(instance, field);
-			
-			this.accessor = accessor;
-			this.mutator = mutator;
+			try {
+				if (getter != null) {
+					getter.setAccessible(true);
+					this.getter = generateGetter(getter);
+					this.getterType = getter.getReturnType();
+					this.getterName = getter.toGenericString();
+				} else {
+					this.getter = generateGetter(field);
+					this.getterType = field.getType();
+					this.getterName = field.toGenericString();
+				}
+				
+				if (setter != null) {
+					setter.setAccessible(true);
+					this.setter = generateSetter(setter);
+					this.setterType = setter.getParameterTypes()[0];
+					this.setterName = setter.toGenericString();
+				} else if (isFinal) {
+					this.setter = null;
+					this.setterType = Void.class;
+					this.setterName = null;
+				} else {
+					this.setter = generateSetter(field);
+					this.setterType = field.getType();
+					this.setterName = field.toGenericString();
+				}
+			} catch (IllegalAccessException e) {
+				throw new ETFException(e);
+			}
 			
 			this.name = field.getName();
+			this.field = field;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public Field getField() {
+			return field;
+		}
+		
+		public Class<?> getGetterType() {
+			return getterType;
+		}
+		
+		public Class<?> getSetterType() {
+			return setterType;
+		}
+		
+		public Object getValue(Object instance) {
+			try {
+				return getter.get(instance);
+			} catch (Throwable e) {
+				throw new ETFException("Cannot access " + getterName, e);
+			}
+		}
+		
+		/**
+		 * This reads an int, short or byte property without boxing it (when it is read straight from its field).
+		 * 
+		 * @param instance The instance to read from.
+		 * @return The value.
+		 */
+		public int getInt(Object instance) {
+			try {
+				return getter.getInt(instance);
+			} catch (Throwable e) {
+				throw new ETFException("Cannot access " + getterName, e);
+			}
+		}
+		
+		/**
+		 * This reads a long property without boxing it (when it is read straight from its field).
+		 * 
+		 * @param instance The instance to read from.
+		 * @return The value.
+		 */
+		public long getLong(Object instance) {
+			try {
+				return getter.getLong(instance);
+			} catch (Throwable e) {
+				throw new ETFException("Cannot access " + getterName, e);
+			}
+		}
+		
+		/**
+		 * This reads a double or float property without boxing it (when it is read straight from its field).
+		 * 
+		 * @param instance The instance to read from.
+		 * @return The value.
+		 */
+		public double getDouble(Object instance) {
+			try {
+				return getter.getDouble(instance);
+			} catch (Throwable e) {
+				throw new ETFException("Cannot access " + getterName, e);
+			}
+		}
+		
+		/**
+		 * This reads a boolean property without boxing it (when it is read straight from its field).
+		 * 
+		 * @param instance The instance to read from.
+		 * @return The value.
+		 */
+		public boolean getBoolean(Object instance) {
+			try {
+				return getter.getBoolean(instance);
+			} catch (Throwable e) {
+				throw new ETFException("Cannot access " + getterName, e);
+			}
+		}
+		
+		public void setValue(Object instance, Object value) {
+			if (setter == null || (value == null && setterType.isPrimitive()))
+				return;
+			
+			try {
+				setter.set(instance, value);
+			} catch (Throwable e) {
+				throw new ETFException("Cannot modify " + setterName, e);
+			}
+		}
+	}
+	
+	public static class PropertyManager {
+		
+		private final Object instance;
+		private final PropertyMetadata metadata;
+		
+		public PropertyManager(Object instance, Field field) {
+			this(instance, new PropertyMetadata(instance.getClass(), field));
+		}
+		
+		public PropertyManager(Object instance, PropertyMetadata metadata) {
+			this.instance = instance;
+			this.metadata = metadata;
 		}
 		
 		public void setValue(Object value) {
-			mutator.set(value);
+			metadata.setValue(instance, value);
 		}
 		
 		public Object getValue() {
-			return accessor.get();
+			return metadata.getValue(instance);
 		}
 		
 		public String getName() {
-			return name;
+			return metadata.getName();
 		}
 		
 		public Class<?> getSetterType() {
-			return mutator.getType();
+			return metadata.getSetterType();
 		}
 		
 		public Class<?> getGetterType() {
-			return accessor.getType();
+			return metadata.getGetterType();
 		}
 	}
 }
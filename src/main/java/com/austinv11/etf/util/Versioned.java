@@ -0,0 +1,16 @@
+package com.austinv11.etf.util;
+
+/**
+ * This represents an immutable object which is written often but changes rarely. Writers cache its encoded form (see
+ * {@link com.austinv11.etf.writing.EncodingCache}) and reuse it until its version stamp changes.
+ */
+public interface Versioned {
+
+    /**
+     * This gets the object's version stamp, which must change whenever anything which is written changes (including
+     * in the objects it contains).
+     *
+     * @return The version stamp.
+     */
+    long getVersionStamp();
+}
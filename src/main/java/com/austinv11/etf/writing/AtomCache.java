@@ -0,0 +1,107 @@
+package com.austinv11.etf.writing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.austinv11.etf.common.TermTypes.ATOM_EXT;
+import static com.austinv11.etf.common.TermTypes.SMALL_ATOM_EXT;
+
+/**
+ * This represents a thread-safe cache of encoded atoms (tag, length and Latin-1 bytes) which {@link ETFWriter}s copy
+ * directly instead of re-encoding the same atoms for every message.
+ *
+ * Atoms written explicitly with {@link ETFWriter#writeAtom(String)}, enum names and map keys are cached as they are
+ * written until the cache is full, after which new atoms are written without being cached. Other strings which happen
+ * to be written as atoms only use atoms which are already cached, so arbitrary data can't fill the cache. Atoms which
+ * are known to be hot can be registered up front with {@link #register(String...)}, registered atoms are always cached
+ * regardless of the cache's size.
+ */
+public class AtomCache {
+
+    /**
+     * A shared cache holding up to 4096 atoms, which configs can opt into (see
+     * {@link com.austinv11.etf.ETFConfig#setAtomCache(AtomCache)}). Cached atoms are never evicted.
+     */
+    public static final AtomCache DEFAULT = new AtomCache(4096);
+
+    private final int maxSize;
+    private final Map<String, byte[]> atoms = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger(); //Only counts atoms cached on demand
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxSize The maximum number of atoms cached on demand, this does not limit registered atoms.
+     */
+    public AtomCache(int maxSize) {
+        this.maxSize = maxSize;
+        register("true", "false", "nil"); //Loqui writes these constantly
+    }
+
+    /**
+     * This registers atoms so that they're always cached.
+     *
+     * @param atoms The atoms to register.
+     * @return The current cache instance (for chaining).
+     */
+    public AtomCache register(String... atoms) {
+        for (String atom : atoms)
+            this.atoms.putIfAbsent(atom, encode(atom));
+        return this;
+    }
+
+    /**
+     * This gets the number of atoms which are currently cached.
+     *
+     * @return The number of atoms.
+     */
+    public int size() {
+        return atoms.size();
+    }
+
+    //Gets the encoded atom if it is cached, or null
+    byte[] get(String atom) {
+        return atoms.get(atom);
+    }
+
+    //Gets the encoded atom, caching it if there is room, or null if it isn't cached and the cache is full
+    byte[] cache(String atom) {
+        byte[] encoded = atoms.get(atom);
+        if (encoded != null)
+            return encoded;
+
+        if (size.incrementAndGet() > maxSize) {
+            size.decrementAndGet();
+            return null;
+        }
+
+        encoded = encode(atom);
+        byte[] existing = atoms.putIfAbsent(atom, encoded);
+        if (existing != null) { //Another thread beat us to it
+            size.decrementAndGet();
+            return existing;
+        }
+        return encoded;
+    }
+
+    //Encodes the atom the same way ETFWriter#writeAtom(String) does
+    static byte[] encode(String atom) {
+        byte[] bytes = atom.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] encoded;
+        if (atom.length() > 255) {
+            encoded = new byte[3 + bytes.length];
+            encoded[0] = ATOM_EXT;
+            encoded[1] = (byte) (bytes.length >>> 8);
+            encoded[2] = (byte) bytes.length;
+            System.arraycopy(bytes, 0, encoded, 3, bytes.length);
+        } else {
+            encoded = new byte[2 + bytes.length];
+            encoded[0] = SMALL_ATOM_EXT;
+            encoded[1] = (byte) bytes.length;
+            System.arraycopy(bytes, 0, encoded, 2, bytes.length);
+        }
+        return encoded;
+    }
+}
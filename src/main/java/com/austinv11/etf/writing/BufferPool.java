@@ -0,0 +1,142 @@
+package com.austinv11.etf.writing;
+
+import com.austinv11.etf.util.ETFException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This represents a thread-safe pool of direct buffers for {@link ETFWriter}s to encode into.
+ *
+ * Buffers are handed out in power of two size classes, requests larger than the biggest class are allocated on demand
+ * and are not kept once released. A buffer must be given back with {@link #release(ByteBuffer)} once its data has been
+ * sent.
+ */
+public class BufferPool {
+
+    /**
+     * A shared pool with buffers ranging from 256 bytes to 1MiB.
+     */
+    public static final BufferPool DEFAULT = new BufferPool(256, 1024 * 1024, 32, false);
+
+    private final int minShift;
+    private final int maxSize;
+    private final int buffersPerClass;
+    private final Queue<ByteBuffer>[] pools;
+    private final AtomicInteger[] pooled;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final Map<ByteBuffer, Throwable> acquired; //Only when tracking leaks, buffers compare by content so this is keyed by identity
+
+    /**
+     * Creates a pool.
+     *
+     * @param minSize The smallest size class (rounded up to a power of two).
+     * @param maxSize The largest size class (rounded up to a power of two).
+     * @param buffersPerClass The maximum number of idle buffers kept per size class.
+     * @param trackLeaks Whether to record where each buffer was acquired, see {@link #getLeaks()}. This is expensive
+     *                   and meant for tests.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int minSize, int maxSize, int buffersPerClass, boolean trackLeaks) {
+        this.minShift = 32 - Integer.numberOfLeadingZeros(Math.max(minSize, 1) - 1);
+        this.maxSize = 1 << (32 - Integer.numberOfLeadingZeros(Math.max(maxSize, minSize) - 1));
+        this.buffersPerClass = buffersPerClass;
+        int classes = sizeClass(this.maxSize) + 1;
+        this.pools = (Queue<ByteBuffer>[]) new Queue<?>[classes];
+        this.pooled = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            pools[i] = new ConcurrentLinkedQueue<>();
+            pooled[i] = new AtomicInteger();
+        }
+        this.acquired = trackLeaks ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+    }
+
+    private int sizeClass(int capacity) {
+        int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return Math.max(shift - minShift, 0);
+    }
+
+    /**
+     * This gets a cleared big-endian direct buffer with at least the requested capacity.
+     *
+     * @param capacity The minimum capacity.
+     * @return The buffer.
+     */
+    public ByteBuffer acquire(int capacity) {
+        ByteBuffer buffer;
+        if (capacity > maxSize) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        } else {
+            int sizeClass = sizeClass(capacity);
+            buffer = pools[sizeClass].poll();
+            if (buffer != null) {
+                pooled[sizeClass].decrementAndGet();
+                buffer.clear();
+            } else {
+                buffer = ByteBuffer.allocateDirect(1 << (sizeClass + minShift));
+            }
+        }
+        buffer.order(ByteOrder.BIG_ENDIAN);
+
+        outstanding.incrementAndGet();
+        if (acquired != null)
+            acquired.put(buffer, new Throwable("Buffer acquired here"));
+
+        return buffer;
+    }
+
+    /**
+     * This returns a buffer to the pool. The buffer must not be used afterwards.
+     *
+     * @param buffer The buffer acquired from {@link #acquire(int)}.
+     *
+     * @throws ETFException When leak tracking is enabled and the buffer isn't currently acquired from this pool.
+     */
+    public void release(ByteBuffer buffer) {
+        if (acquired != null && acquired.remove(buffer) == null)
+            throw new ETFException("Buffer was not acquired from this pool or was already released!");
+
+        outstanding.decrementAndGet();
+
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || capacity > maxSize || capacity < 1 << minShift || Integer.bitCount(capacity) != 1)
+            return; //Not one of our size classes
+
+        int sizeClass = sizeClass(capacity);
+        if (pooled[sizeClass].incrementAndGet() <= buffersPerClass)
+            pools[sizeClass].offer(buffer);
+        else
+            pooled[sizeClass].decrementAndGet();
+    }
+
+    /**
+     * This gets the number of buffers which have been acquired but not released yet.
+     *
+     * @return The number of outstanding buffers.
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * This gets where each outstanding buffer was acquired. This is only available when leak tracking is enabled.
+     *
+     * @return The acquisition sites of buffers which haven't been released, empty when not tracking.
+     */
+    public List<Throwable> getLeaks() {
+        if (acquired == null)
+            return Collections.emptyList();
+
+        synchronized (acquired) {
+            return new ArrayList<>(acquired.values());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.austinv11.etf.writing;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This tracks how well each kind of message compresses so writers can stop compressing messages which don't shrink
+ * enough to be worth it.
+ *
+ * A message's kind defaults to the class of the first term written (see {@link ETFWriter#setMessageKind(Object)}).
+ * Once a kind has been sampled enough, it is only compressed while its average compressed size stays below
+ * {@link #MAX_RATIO} of the original size. Skipped kinds are still sampled every {@link #PROBE_INTERVAL} messages so
+ * they can recover if their content changes.
+ */
+public class CompressionStats {
+
+    /**
+     * The number of samples needed before a kind can stop being compressed.
+     */
+    public static final int MIN_SAMPLES = 16;
+    /**
+     * The compressed to uncompressed size ratio above which compression is skipped.
+     */
+    public static final double MAX_RATIO = 0.9;
+    /**
+     * How often (in messages) a skipped kind is compressed anyways to re-sample it.
+     */
+    public static final int PROBE_INTERVAL = 64;
+
+    private static final double WEIGHT = 0.125; //Weight of each new sample in the moving average
+
+    private final Map<Object, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * This checks whether the next message of the given kind should be compressed.
+     *
+     * @param kind The message kind.
+     * @return True to compress, false to skip compression.
+     */
+    public boolean shouldCompress(Object kind) {
+        Entry entry = entries.get(kind);
+        return entry == null || entry.shouldCompress();
+    }
+
+    /**
+     * This records the outcome of compressing a message.
+     *
+     * @param kind The message kind.
+     * @param uncompressed The uncompressed size.
+     * @param compressed The compressed size.
+     */
+    public void record(Object kind, int uncompressed, int compressed) {
+        entries.computeIfAbsent(kind, k -> new Entry()).record((double) compressed / uncompressed);
+    }
+
+    /**
+     * This gets the average compressed to uncompressed size ratio of a kind of message.
+     *
+     * @param kind The message kind.
+     * @return The ratio, or 0 if the kind hasn't been sampled.
+     */
+    public double getRatio(Object kind) {
+        Entry entry = entries.get(kind);
+        return entry == null ? 0 : entry.ratio;
+    }
+
+    private static class Entry {
+
+        int samples = 0;
+        double ratio = 0;
+        int skipped = 0;
+
+        synchronized boolean shouldCompress() {
+            if (samples < MIN_SAMPLES || ratio <= MAX_RATIO)
+                return true;
+
+            if (++skipped >= PROBE_INTERVAL) {
+                skipped = 0;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void record(double sample) {
+            ratio = samples == 0 ? sample : ratio + (sample - ratio) * WEIGHT;
+            samples++;
+        }
+    }
+}
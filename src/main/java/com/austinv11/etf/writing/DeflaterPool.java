@@ -0,0 +1,37 @@
+package com.austinv11.etf.writing;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Internal pool of {@link Deflater}s, creating one allocates native zlib state so they're reused between messages.
+ */
+class DeflaterPool {
+
+    private static final int MAX_IDLE = 32;
+
+    private static final Queue<Deflater> IDLE = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger IDLE_COUNT = new AtomicInteger();
+
+    static Deflater acquire(int level) {
+        Deflater deflater = IDLE.poll();
+        if (deflater == null)
+            return new Deflater(level);
+
+        IDLE_COUNT.decrementAndGet();
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    static void release(Deflater deflater) {
+        deflater.reset();
+        if (IDLE_COUNT.incrementAndGet() <= MAX_IDLE) {
+            IDLE.offer(deflater);
+        } else {
+            IDLE_COUNT.decrementAndGet();
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.austinv11.etf.writing;
+
+import com.austinv11.etf.ETFConfig;
+import com.austinv11.etf.util.ETFException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * This writes many independent messages (frames) into one growing buffer, so a burst of small messages doesn't need a
+ * writer, buffer and copy per message. The whole batch can be sent with a single write, or individual frames can be
+ * sliced out using their offsets and lengths.
+ *
+ * Each frame can be preceded by a 4 byte big-endian length prefix (which doesn't count itself) and a version byte.
+ * Frames are never compressed and don't include distribution headers. The writer can be {@link #clear() cleared} and
+ * reused once a batch has been sent, keeping its buffer.
+ */
+public class ETFBatchWriter {
+
+    private final ETFWriter writer;
+    private final boolean versioned;
+    private final boolean lengthPrefixed;
+    private int[] offsets = new int[16];
+    private int[] lengths = new int[16];
+    private int count = 0;
+
+    /**
+     * Creates a batch writer.
+     *
+     * @param config The config to use.
+     * @param versioned Whether each frame starts with a version byte.
+     * @param lengthPrefixed Whether each frame is preceded by its length.
+     */
+    public ETFBatchWriter(ETFConfig config, boolean versioned, boolean lengthPrefixed) {
+        this(config, versioned, lengthPrefixed, null);
+    }
+
+    /**
+     * Creates a batch writer which encodes into a direct buffer taken from a pool. The buffer is kept while the writer
+     * is reused, it must be given back with {@link #release()} once the writer isn't needed anymore.
+     *
+     * @param config The config to use.
+     * @param versioned Whether each frame starts with a version byte.
+     * @param lengthPrefixed Whether each frame is preceded by its length.
+     * @param pool The pool to take buffers from.
+     */
+    public ETFBatchWriter(ETFConfig config, boolean versioned, boolean lengthPrefixed, BufferPool pool) {
+        this.writer = ETFWriter.batch(config, pool);
+        this.versioned = versioned;
+        this.lengthPrefixed = lengthPrefixed;
+    }
+
+    /**
+     * This writes a term as a new frame. If encoding fails the frame is discarded and the batch is left as it was.
+     *
+     * @param o The term.
+     * @return The current writer instance (for chaining).
+     */
+    public ETFBatchWriter write(Object o) {
+        int offset = writer.size();
+        int position = writer.beginMessage(lengthPrefixed, versioned);
+        try {
+            writer.write(o);
+        } catch (RuntimeException e) {
+            writer.truncate(position);
+            throw e;
+        }
+
+        int length = writer.size() - offset;
+        if (lengthPrefixed)
+            writer.patchLength(position, length - 4);
+
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+        }
+        offsets[count] = offset;
+        lengths[count] = length;
+        count++;
+        return this;
+    }
+
+    /**
+     * This gets the number of frames in the batch.
+     *
+     * @return The number of frames.
+     */
+    public int getFrameCount() {
+        return count;
+    }
+
+    /**
+     * This gets where a frame starts in the batch, including its length prefix.
+     *
+     * @param frame The frame's index.
+     * @return The offset in bytes.
+     */
+    public int getOffset(int frame) {
+        checkFrame(frame);
+        return offsets[frame];
+    }
+
+    /**
+     * This gets the size of a frame, including its length prefix.
+     *
+     * @param frame The frame's index.
+     * @return The length in bytes.
+     */
+    public int getLength(int frame) {
+        checkFrame(frame);
+        return lengths[frame];
+    }
+
+    /**
+     * This gets the size of the whole batch.
+     *
+     * @return The size in bytes.
+     */
+    public int size() {
+        return writer.size();
+    }
+
+    private void checkFrame(int frame) {
+        if (frame < 0 || frame >= count)
+            throw new ETFException("Frame " + frame + " is out of bounds for a batch of " + count + " frames!");
+    }
+
+    /**
+     * This gets a view of a single frame, including its length prefix. The view is only valid until the writer is
+     * written to or cleared.
+     *
+     * @param frame The frame's index.
+     * @return The frame.
+     */
+    public ByteBuffer getFrame(int frame) {
+        checkFrame(frame);
+        ByteBuffer data = writer.view();
+        data.position(data.position() + offsets[frame]).limit(data.position() + lengths[frame]);
+        return data.slice();
+    }
+
+    /**
+     * This gets a view of the whole batch, which is only valid until the writer is written to or cleared.
+     *
+     * @return The batch.
+     */
+    public ByteBuffer toBuffer() {
+        return writer.view();
+    }
+
+    /**
+     * This copies the whole batch into a byte array.
+     *
+     * @return The batch.
+     */
+    public byte[] toBytes() {
+        return writer.toBytes();
+    }
+
+    /**
+     * This gets the batch as a sequence of buffers, large binaries are their own segments if the config has a segment
+     * threshold (see {@link ETFConfig#setSegmentThreshold(int)}). The segments are only valid until the writer is
+     * written to or cleared.
+     *
+     * @return The segments, in order.
+     */
+    public ByteBuffer[] toSegments() {
+        return writer.toSegments();
+    }
+
+    /**
+     * This writes the whole batch to a channel, with a single gathering write if the channel supports it, and then
+     * clears the writer.
+     *
+     * @param channel The channel to send the batch to.
+     */
+    public void sendTo(WritableByteChannel channel) {
+        ETFWriter.writeFully(channel, writer.toSegments());
+        clear();
+    }
+
+    /**
+     * This removes every frame so the writer can be reused, its buffer is kept.
+     *
+     * @return The current writer instance (for chaining).
+     */
+    public ETFBatchWriter clear() {
+        writer.clear();
+        count = 0;
+        return this;
+    }
+
+    /**
+     * This gives a pooled writer's buffer back to its pool, after which the writer can't be used anymore. This does
+     * nothing for other writers.
+     */
+    public void release() {
+        writer.release();
+    }
+}
@@ -0,0 +1,207 @@
+package com.austinv11.etf.writing;
+
+import com.austinv11.etf.ETFConfig;
+import com.austinv11.etf.util.ETFException;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static com.austinv11.etf.common.TermTypes.*;
+
+/**
+ * This represents a message which is encoded once and then sent many times with only a few values changed, such as a
+ * heartbeat with a sequence number.
+ *
+ * The message's shape is written like any other term, with {@link Slot}s (see {@link #intSlot()},
+ * {@link #longSlot()} and {@link #floatSlot()}) in place of the values which change. Slots are always written with a
+ * fixed width encoding so filling them in is just a copy of the template and a few puts. Templates are never
+ * compressed and don't include distribution headers.
+ */
+public class ETFTemplate {
+
+    private final byte[] template;
+    private final Map<Slot, Integer> slots;
+
+    /**
+     * Creates a template.
+     *
+     * @param config The config to use.
+     * @param shape The term to encode, with slots in place of the values which change. A slot can only be used once.
+     */
+    public ETFTemplate(ETFConfig config, Object shape) {
+        ETFWriter writer = new ETFWriter(config, true); //Partial writers never compress
+        writer.write(shape);
+        this.template = writer.toBytes();
+        this.slots = writer.slots();
+    }
+
+    /**
+     * This creates a slot for an integer, it is written as an INTEGER_EXT.
+     *
+     * @return The slot.
+     */
+    public static Slot intSlot() {
+        return new Slot(INTEGER_EXT);
+    }
+
+    /**
+     * This creates a slot for a long, it is written as an 8 digit SMALL_BIG_EXT.
+     *
+     * @return The slot.
+     */
+    public static Slot longSlot() {
+        return new Slot(SMALL_BIG_EXT);
+    }
+
+    /**
+     * This creates a slot for a double, it is written as a NEW_FLOAT_EXT.
+     *
+     * @return The slot.
+     */
+    public static Slot floatSlot() {
+        return new Slot(NEW_FLOAT_EXT);
+    }
+
+    /**
+     * This creates a new message from the template, all slots start out as 0.
+     *
+     * @return The message.
+     */
+    public Message newMessage() {
+        return new Message(template.clone());
+    }
+
+    /**
+     * This gets the size of the messages created from this template.
+     *
+     * @return The size in bytes.
+     */
+    public int size() {
+        return template.length;
+    }
+
+    private int positionOf(Slot slot) {
+        Integer position = slots.get(slot);
+        if (position == null)
+            throw new ETFException("Slot is not part of this template!");
+        return position;
+    }
+
+    /**
+     * This represents a placeholder for a value in a template.
+     */
+    public static class Slot {
+
+        private final byte type;
+
+        private Slot(byte type) {
+            this.type = type;
+        }
+
+        //The encoded size of the slot
+        int size() {
+            switch (type) {
+                case INTEGER_EXT:
+                    return 5;
+                case SMALL_BIG_EXT:
+                    return 11;
+                default:
+                    return 9;
+            }
+        }
+
+        //The slot's encoding with a value of 0
+        byte[] placeholder() {
+            byte[] placeholder = new byte[size()];
+            placeholder[0] = type;
+            if (type == SMALL_BIG_EXT)
+                placeholder[1] = 8;
+            return placeholder;
+        }
+    }
+
+    /**
+     * This represents a message created from a template.
+     */
+    public class Message {
+
+        private final byte[] data;
+
+        private Message(byte[] data) {
+            this.data = data;
+        }
+
+        private int position(Slot slot, byte type) {
+            if (slot.type != type)
+                throw new ETFException("Slot type mismatch!");
+            return positionOf(slot) + 1; //After the tag
+        }
+
+        /**
+         * This sets the value of an integer slot.
+         *
+         * @param slot The slot.
+         * @param value The value.
+         * @return The current message instance (for chaining).
+         */
+        public Message setInt(Slot slot, int value) {
+            int position = position(slot, INTEGER_EXT);
+            data[position] = (byte) (value >>> 24);
+            data[position + 1] = (byte) (value >>> 16);
+            data[position + 2] = (byte) (value >>> 8);
+            data[position + 3] = (byte) value;
+            return this;
+        }
+
+        /**
+         * This sets the value of a long slot.
+         *
+         * @param slot The slot.
+         * @param value The value.
+         * @return The current message instance (for chaining).
+         */
+        public Message setLong(Slot slot, long value) {
+            int position = position(slot, SMALL_BIG_EXT) + 1; //After the digit count
+            data[position++] = value < 0 ? (byte) 1 : (byte) 0;
+            long magnitude = Math.abs(value); //Treated as unsigned so Long.MIN_VALUE works
+            for (int i = 0; i < Long.BYTES; i++)
+                data[position++] = (byte) (magnitude >>> (i * 8));
+            return this;
+        }
+
+        /**
+         * This sets the value of a float slot.
+         *
+         * @param slot The slot.
+         * @param value The value.
+         * @return The current message instance (for chaining).
+         */
+        public Message setFloat(Slot slot, double value) {
+            int position = position(slot, NEW_FLOAT_EXT);
+            long bits = Double.doubleToLongBits(value);
+            for (int i = 0; i < Long.BYTES; i++)
+                data[position + i] = (byte) (bits >>> ((Long.BYTES - 1 - i) * 8));
+            return this;
+        }
+
+        /**
+         * This gets the message's data, this is not copied.
+         *
+         * @return The message's data.
+         */
+        public byte[] toBytes() {
+            return data;
+        }
+
+        /**
+         * This copies the message's data into a buffer.
+         *
+         * @param buffer The buffer to write to.
+         * @return The buffer.
+         */
+        public ByteBuffer writeTo(ByteBuffer buffer) {
+            return buffer.put(data);
+        }
+    }
+}
@@ -4,33 +4,149 @@ import com.austinv11.etf.ETFConfig;
 import com.austinv11.etf.erlang.*;
 import com.austinv11.etf.util.ETFException;
 import com.austinv11.etf.util.ReflectionUtils;
+import com.austinv11.etf.util.Versioned;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
 import static com.austinv11.etf.common.TermTypes.*;
 
 /**
  * This represents a writer for writing data to an etf object.
+ * 
+ * A writer either accumulates the whole message in memory (see {@link #toBytes()}) or, when created with an
+ * {@link OutputStream} or {@link WritableByteChannel}, streams it through a bounded buffer which is flushed to the sink
+ * as it fills. In memory writers can also encode straight into a caller supplied or {@link BufferPool pooled} direct
+ * buffer which {@link #toBuffer()} then hands over without copying.
  */
 public class ETFWriter {
+    
+    /**
+     * The default size of the buffer used by streaming writers.
+     */
+    public static final int DEFAULT_STREAM_BUFFER_SIZE = 8192;
+    
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int STRING_CHUNK_SIZE = 4096; //Chars encoded per capacity check
+    private static final int PARALLEL_CHUNK_SIZE = 256; //The fewest elements encoded per task
 
-    private byte[] data = new byte[64];
-    private int offset = 0;
+    private final ETFConfig config;
+    private ByteBuffer buffer;
+    private final BufferPool pool;
+    private String sealed = null; //Why the writer can't be written to anymore, if it can't
+    private final OutputStream out;
+    private final WritableByteChannel channel;
+    private final boolean streaming;
     private final boolean bert;
     private final byte version;
     private final boolean includeHeader;
     private final boolean includeDistributionHeader;
     private final boolean loqui;
     private final boolean compress;
+    private final int compressionLevel;
+    private final int compressionThreshold;
+    private final CompressionStats compressionStats;
+    private final byte[] compressionDictionary;
+    private final AtomCache atomCache;
+    private final EncodingCache encodingCache;
+    private Versioned uncached = null; //The object being encoded for the encoding cache
+    private final int segmentThreshold;
+    private List<Segment> segments = null; //Binaries which are referenced rather than copied, in order
+    private long referencedBytes = 0;
+    private Map<ETFTemplate.Slot, Integer> slots = null; //Where each template slot was written
+    private int[] begun = new int[8]; //Where each beginList()/beginMap() header is, followed by its element count
+    private int begunCount = 0;
+    private int lastElement = -1; //Where the last term counted as an element started
+    private int pinned = 0; //The number of containers whose length still needs to be patched
+    private int parallelThreshold; //Not final since fragments are never split further
+    private final ForkJoinPool parallelPool;
+    private final int start;
+    private Object messageKind = null;
+    private int maxDepth; //Not final since fragments start out nested
+    private Frame[] frames = new Frame[8];
+    private int depth = 0;
+    private byte[] scratch = null; //Staging for encoding text into direct buffers
 
     public ETFWriter(ETFConfig config) {
         this(config, false);
     }
 
     public ETFWriter(ETFConfig config, boolean partial) {
+        this(config, partial, null, null, ByteBuffer.allocate(64), null);
+    }
+    
+    /**
+     * Creates a writer which encodes into the provided buffer, starting at its current position. If the buffer runs out
+     * of room its contents are moved to a larger buffer of the same kind (direct or heap).
+     *
+     * @param config The config to use.
+     * @param target The buffer to write to, its byte order is set to big-endian.
+     */
+    public ETFWriter(ETFConfig config, ByteBuffer target) {
+        this(config, false, null, null, target.order(ByteOrder.BIG_ENDIAN), null);
+    }
+    
+    /**
+     * Creates a writer which encodes into direct buffers taken from a pool. The buffer returned by {@link #toBuffer()}
+     * belongs to the caller, who must give it back with {@link BufferPool#release(ByteBuffer)} once it has been sent
+     * (or use {@link #sendTo(WritableByteChannel)} which does both).
+     *
+     * @param config The config to use.
+     * @param pool The pool to take buffers from.
+     */
+    public ETFWriter(ETFConfig config, BufferPool pool) {
+        this(config, false, null, null, pool.acquire(256), pool);
+    }
+    
+    /**
+     * Creates a streaming writer, the message is flushed to the stream as the writer's buffer fills rather than being
+     * held in memory. Streamed messages are never compressed.
+     *
+     * @param config The config to use.
+     * @param out The stream to write to.
+     * @param bufferSize The size of the writer's buffer.
+     */
+    public ETFWriter(ETFConfig config, OutputStream out, int bufferSize) {
+        this(config, false, out, null, ByteBuffer.allocate(bufferSize), null);
+    }
+    
+    /**
+     * Creates a streaming writer, the message is flushed to the channel as the writer's buffer fills rather than being
+     * held in memory. Streamed messages are never compressed.
+     *
+     * @param config The config to use.
+     * @param channel The channel to write to.
+     * @param bufferSize The size of the writer's buffer.
+     */
+    public ETFWriter(ETFConfig config, WritableByteChannel channel, int bufferSize) {
+        this(config, false, null, channel, ByteBuffer.allocate(bufferSize), null);
+    }
+    
+    private ETFWriter(ETFConfig config, boolean partial, OutputStream out, WritableByteChannel channel,
+                      ByteBuffer buffer, BufferPool pool) {
+        this.config = config;
+        this.out = out;
+        this.channel = channel;
+        streaming = out != null || channel != null;
+        this.buffer = buffer;
+        this.pool = pool;
+        
         if (partial) { //These should never be true when partial
             includeDistributionHeader = false;
             includeHeader = false;
@@ -38,46 +154,159 @@ public class ETFWriter {
         } else {
             includeDistributionHeader = config.isIncludingDistributionHeader();
             includeHeader = config.isIncludingHeader();
-            compress = config.isCompressing();
+            //Can't compress without knowing the size up front or without a version byte to precede the header
+            compress = config.isCompressing() && !streaming && !includeDistributionHeader && includeHeader;
         }
         bert = config.isBert();
         version = (byte) config.getVersion();
         loqui = config.isLoqui();
+        maxDepth = config.getMaxDepth();
+        
+        compressionLevel = config.getCompressionLevel();
+        compressionThreshold = config.getCompressionThreshold();
+        compressionStats = config.getCompressionStats();
+        compressionDictionary = config.getCompressionDictionary();
+        atomCache = config.getAtomCache();
+        encodingCache = config.getEncodingCache();
+        segmentThreshold = streaming ? 0 : config.getSegmentThreshold(); //Streaming writers never hold onto data
+        parallelThreshold = config.getParallelThreshold();
+        parallelPool = config.getParallelPool();
+        
+        start = buffer.position();
+        if (!includeDistributionHeader)
+            buffer.put(version);
     }
-
-    private void writeToBuffer(byte... data) {
-        if (this.data.length - offset < data.length+1/*Ensure room for a version byte if necessary*/) { //We need to expand the buffer
-            this.data = Arrays.copyOf(this.data, this.data.length * 2);
+    
+    //Makes sure the buffer has room for the given number of bytes, growing it if necessary
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() < bytes)
+            grow(bytes);
+    }
+    
+    private void grow(int bytes) {
+        if (streaming && pinned == 0) { //The data can't be flushed while a length still needs to be patched
+            flush();
+            if (buffer.remaining() >= bytes)
+                return;
         }
-
-        if (this.data[0] != version && !includeDistributionHeader) {
-           this.data[offset++] = version;
+        
+        if (sealed != null)
+            throw new ETFException(sealed);
+        
+        int required = buffer.position() + bytes;
+        if (required < 0) //Overflowed
+            throw new ETFException("Term is too large to write!");
+        
+        int capacity = buffer.capacity() << 1;
+        if (capacity < required)
+            capacity = required;
+        else if (capacity < 0) //Overflowed
+            capacity = Integer.MAX_VALUE;
+        
+        resize(capacity);
+    }
+    
+    private void resize(int capacity) {
+        ByteBuffer grown;
+        if (pool != null)
+            grown = pool.acquire(capacity);
+        else if (buffer.isDirect())
+            grown = ByteBuffer.allocateDirect(capacity);
+        else
+            grown = ByteBuffer.allocate(capacity);
+        
+        buffer.flip();
+        grown.put(buffer);
+        if (pool != null)
+            pool.release(buffer);
+        buffer = grown;
+    }
+    
+    //Copies raw bytes into the buffer, streaming writers send arrays larger than their buffer straight to the sink
+    private void putBytes(byte[] bytes, int offset, int length) {
+        if (streaming && pinned == 0 && length > buffer.capacity()) {
+            flush();
+            writeToSink(ByteBuffer.wrap(bytes, offset, length));
+        } else {
+            ensureCapacity(length);
+            buffer.put(bytes, offset, length);
         }
-
-        for (byte b : data) {
-            this.data[offset++] = b;
+    }
+    
+    private void writeToSink(ByteBuffer data) {
+        try {
+            if (out != null) {
+                out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                data.position(data.limit());
+            } else {
+                while (data.hasRemaining())
+                    channel.write(data);
+            }
+        } catch (IOException e) {
+            throw new ETFException(e);
         }
     }
+    
+    /**
+     * This sends everything buffered so far to the writer's stream or channel. This does nothing if the writer isn't
+     * streaming.
+     *
+     * @return The current writer instance (for chaining).
+     *
+     * @throws com.austinv11.etf.util.ETFException When a list or map's length still needs to be patched.
+     */
+    public ETFWriter flush() {
+        if (pinned > 0)
+            throw new ETFException("A list or map hasn't been ended yet!");
+        
+        if (streaming && buffer.position() > 0) {
+            buffer.flip();
+            writeToSink(buffer);
+            buffer.clear();
+            lastElement = -1; //Positions are reused after a flush
+        }
+        return this;
+    }
+    
+    /**
+     * This checks whether this writer streams to an {@link OutputStream} or {@link WritableByteChannel}.
+     *
+     * @return True when streaming, false if the message is held in memory.
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+    
+    //Writes a tag followed by a 4 byte length/arity
+    private void writeHeader(byte tag, int length) {
+        ensureCapacity(5);
+        buffer.put(tag).putInt(length);
+    }
 
     public ETFWriter writeAtomCacheIndex(short index) {
-        writeToBuffer(ATOM_CACHE_REF, (byte) index);
+        element();
+        ensureCapacity(2);
+        buffer.put(ATOM_CACHE_REF).put((byte) index);
         return this;
     }
 
     public ETFWriter writeSmallInt(int integer) {
-        writeToBuffer(SMALL_INTEGER_EXT, (byte) (integer & 0xff));
+        element();
+        ensureCapacity(2);
+        buffer.put(SMALL_INTEGER_EXT).put((byte) integer);
         return this;
     }
 
     public ETFWriter writeLargeInt(int integer) {
-        writeToBuffer(INTEGER_EXT, (byte) ((integer >>> 24) & 0xff), (byte) ((integer >>> 16) & 0xff), 
-                (byte) ((integer >>> 8) & 0xff), (byte) (integer & 0xff));
+        element();
+        ensureCapacity(5);
+        buffer.put(INTEGER_EXT).putInt(integer);
         return this;
     }
 
     public ETFWriter writeInt(int integer) {
-        if (Integer.BYTES * integer == 1) {
-            writeSmallInt((short) integer);
+        if ((integer & ~0xFF) == 0) { //Small ints are unsigned bytes
+            writeSmallInt(integer);
         } else {
             writeLargeInt(integer);
         }
@@ -85,18 +314,17 @@ public class ETFWriter {
     }
     
     public strictfp ETFWriter writeOldFloat(double num) {
-        writeToBuffer(FLOAT_EXT);
-        writeToBuffer(String.format("%.20f", num).getBytes());
+        element();
+        byte[] bytes = String.format("%.20f", num).getBytes();
+        ensureCapacity(1 + bytes.length);
+        buffer.put(FLOAT_EXT).put(bytes);
         return this;
     }
     
     public strictfp ETFWriter writeNewFloat(double num) {
-        long longBits = Double.doubleToLongBits(num);
-        writeToBuffer(NEW_FLOAT_EXT, 
-                (byte) ((longBits >>> 56) & 0xff), (byte) ((longBits >>> 48) & 0xff), 
-                (byte) ((longBits >>> 40) & 0xff), (byte) ((longBits >>> 32) & 0xff), 
-                (byte) ((longBits >>> 24) & 0xff), (byte) ((longBits >>> 16) & 0xff),
-                (byte) ((longBits >>> 8) & 0xff), (byte) (longBits & 0xff));
+        element();
+        ensureCapacity(9);
+        buffer.put(NEW_FLOAT_EXT).putLong(Double.doubleToLongBits(num));
         return this;
     }
     
@@ -105,61 +333,59 @@ public class ETFWriter {
     }
     
     public ETFWriter writeLargeAtom(String atom) {
-        try {
-            byte[] bytes = atom.getBytes("ISO-8859-1" /*Latin-1 charset*/);
-            writeToBuffer(ATOM_EXT);
-            writeToBuffer((byte) ((bytes.length >>> 8) & 0xff), (byte) (bytes.length & 0xff)); //Length number
-            writeToBuffer(bytes);
-        } catch (UnsupportedEncodingException e) {
-            throw new ETFException(e);
-        }
+        element();
+        byte[] bytes = atom.getBytes(StandardCharsets.ISO_8859_1);
+        ensureCapacity(3 + bytes.length);
+        buffer.put(ATOM_EXT).putShort((short) bytes.length).put(bytes);
         return this;
     }
     
     public ETFWriter writeSmallAtom(String atom) {
-        try {
-            byte[] bytes = atom.getBytes("ISO-8859-1" /*Latin-1 charset*/);
-            writeToBuffer(SMALL_ATOM_EXT);
-            writeToBuffer((byte) (bytes.length & 0xff)); //Length number
-            writeToBuffer(bytes);
-        } catch (UnsupportedEncodingException e) {
-            throw new ETFException(e);
-        }
+        element();
+        byte[] bytes = atom.getBytes(StandardCharsets.ISO_8859_1);
+        ensureCapacity(2 + bytes.length);
+        buffer.put(SMALL_ATOM_EXT).put((byte) bytes.length).put(bytes);
         return this;
     }
     
     public ETFWriter writeLargeUTF8Atom(String atom) {
-        try {
-            byte[] bytes = atom.getBytes("UTF8");           
-            writeToBuffer(ATOM_EXT);
-            writeToBuffer((byte) ((bytes.length >>> 8) & 0xff), (byte) (bytes.length & 0xff)); //Length number
-            writeToBuffer(bytes);
-        } catch (UnsupportedEncodingException e) {
-            throw new ETFException(e);
-        }
+        element();
+        byte[] bytes = atom.getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(3 + bytes.length);
+        buffer.put(ATOM_EXT).putShort((short) bytes.length).put(bytes);
         return this;
     }
     
     public ETFWriter writeSmallUTF8Atom(String atom) {
-        try {
-            byte[] bytes = atom.getBytes("UTF8");
-            writeToBuffer(SMALL_ATOM_EXT);
-            writeToBuffer((byte) (bytes.length & 0xff)); //Length number
-            writeToBuffer(bytes);
-        } catch (UnsupportedEncodingException e) {
-            throw new ETFException(e);
-        }
+        element();
+        byte[] bytes = atom.getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(2 + bytes.length);
+        buffer.put(SMALL_ATOM_EXT).put((byte) bytes.length).put(bytes);
         return this;
     }
     
     public ETFWriter writeAtom(String atom) {
+        return writeAtom(atom, true);
+    }
+    
+    //Only explicit atoms, enum names and map keys are added to the cache, other strings just use atoms already cached
+    private ETFWriter writeAtom(String atom, boolean cache) {
+        element();
+        if (atomCache != null) { //Cached atoms are already encoded the same way as below
+            byte[] encoded = cache ? atomCache.cache(atom) : atomCache.get(atom);
+            if (encoded != null) {
+                putBytes(encoded, 0, encoded.length);
+                return this;
+            }
+        }
+        
         //TODO Header check for UTF8
-        if (atom.length() > 256)
+        if (atom.length() > 255)
             writeLargeAtom(atom);
         else
             writeSmallAtom(atom);
     
-//        if (atom.length() > 256)
+//        if (atom.length() > 255)
 //            writeLargeUTF8Atom(atom);
 //        else
 //            writeSmallUTF8Atom(atom);
@@ -173,38 +399,409 @@ public class ETFWriter {
         return writeAtom(bool ? "true" : "false");
     }
     
+    /**
+     * This writes a string the same way {@link #write(Object)} does, as an atom or (in loqui mode) as a binary unless
+     * it would be read back as a boolean or nil.
+     *
+     * @param string The string.
+     * @return The current writer instance.
+     */
+    public ETFWriter writeString(String string) {
+        return writeString(string, false);
+    }
+    
+    private ETFWriter writeString(String string, boolean key) {
+        if (!loqui || string.equals("true") || string.equals("false") || string.equals("nil"))
+            return writeAtom(string, key); //TODO should we optimize for other types?
+        else
+            return writeBinary(string);
+    }
+    
     public ETFWriter writeBinary(String bin) {
-        return writeBinary(bin.getBytes());
+        return writeBinary(bin, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * This writes text as a binary. Latin-1, ASCII and UTF-8 are encoded straight into the writer's buffer without
+     * creating an intermediate array, other charsets fall back to {@link String#getBytes(Charset)}. Characters which
+     * can't be encoded are replaced with '?', like {@link String#getBytes(Charset)} does.
+     *
+     * @param bin The text.
+     * @param charset The charset to encode the text with.
+     * @return The current writer instance.
+     */
+    public ETFWriter writeBinary(CharSequence bin, Charset charset) {
+        element();
+        if (charset.equals(StandardCharsets.UTF_8))
+            writeTextBinary(bin, 3, 0);
+        else if (charset.equals(StandardCharsets.ISO_8859_1))
+            writeTextBinary(bin, 1, 0xFF);
+        else if (charset.equals(StandardCharsets.US_ASCII))
+            writeTextBinary(bin, 1, 0x7F);
+        else
+            writeBinary(bin.toString().getBytes(charset));
+        return this;
+    }
+    
+    //UTF-8 is written when bytesPerChar is 3, otherwise chars above max are written as '?'
+    private void writeTextBinary(CharSequence bin, int bytesPerChar, int max) {
+        long maxLength = (long) bytesPerChar * bin.length(); //Surrogate pairs take at most 4 bytes for 2 chars
+        if (streaming && 5 + maxLength > buffer.capacity()) {
+            //The header could be flushed before the length is known, so count it up front instead
+            writeHeader(BINARY_EXT, bytesPerChar == 3 ? utf8Length(bin) : singleByteLength(bin));
+            putChars(bin, bytesPerChar, max);
+        } else {
+            //Streaming writers must not flush until the length is patched, in memory writers grow as they go
+            ensureCapacity(streaming ? 5 + (int) maxLength : 5);
+            buffer.put(BINARY_EXT);
+            int lengthPosition = buffer.position();
+            buffer.position(lengthPosition + 4);
+            putChars(bin, bytesPerChar, max);
+            buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4); //Backpatch the length
+        }
+    }
+    
+    //Encodes chars into the buffer a chunk at a time, chunks are encoded in place for heap buffers and through a reused
+    //scratch array for direct buffers
+    private void putChars(CharSequence chars, int bytesPerChar, int max) {
+        int length = chars.length();
+        int i = 0;
+        while (i < length) {
+            int end = i + chunkLength(length - i, bytesPerChar);
+            if (end < length && Character.isHighSurrogate(chars.charAt(end - 1)))
+                end += end - i == 1 ? 1 : -1; //Keep surrogate pairs within a chunk
+            ensureCapacity(bytesPerChar * (end - i));
+            
+            byte[] dest;
+            int offset;
+            if (buffer.hasArray()) {
+                dest = buffer.array();
+                offset = buffer.arrayOffset() + buffer.position();
+            } else {
+                dest = scratch(bytesPerChar * (end - i));
+                offset = 0;
+            }
+            
+            int written = bytesPerChar == 3 ? encodeUTF8(chars, i, end, dest, offset)
+                    : encodeSingleByte(chars, i, end, max, dest, offset);
+            if (buffer.hasArray())
+                buffer.position(buffer.position() + written);
+            else
+                buffer.put(dest, 0, written);
+            i = end;
+        }
+    }
+    
+    //The number of chars to encode at once, streaming writers can't hold more than their buffer
+    private int chunkLength(int remaining, int maxBytesPerChar) {
+        int chunk = Math.min(remaining, STRING_CHUNK_SIZE);
+        if (streaming)
+            chunk = Math.min(chunk, Math.max(buffer.capacity() / maxBytesPerChar, 2));
+        return chunk;
+    }
+    
+    private byte[] scratch(int size) {
+        if (scratch == null || scratch.length < size)
+            scratch = new byte[Math.max(size, 3 * STRING_CHUNK_SIZE)];
+        return scratch;
+    }
+    
+    //Encodes chars the same way String#getBytes(Charset) does for UTF-8, returning the number of bytes written
+    private static int encodeUTF8(CharSequence chars, int from, int to, byte[] dest, int offset) {
+        int start = offset;
+        for (int i = from; i < to; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                dest[offset++] = (byte) c;
+            } else if (c < 0x800) {
+                dest[offset++] = (byte) (0xC0 | (c >> 6));
+                dest[offset++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+                    dest[offset++] = (byte) (0xF0 | (codePoint >> 18));
+                    dest[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    dest[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    dest[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    dest[offset++] = '?'; //Unpaired surrogate
+                }
+            } else {
+                dest[offset++] = (byte) (0xE0 | (c >> 12));
+                dest[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                dest[offset++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return offset - start;
+    }
+    
+    //Encodes chars the same way String#getBytes(Charset) does for single byte charsets, returning the number of bytes
+    //written. Surrogate pairs are a single unmappable character
+    private static int encodeSingleByte(CharSequence chars, int from, int to, int max, byte[] dest, int offset) {
+        int start = offset;
+        for (int i = from; i < to; i++) {
+            char c = chars.charAt(i);
+            if (c <= max) {
+                dest[offset++] = (byte) c;
+            } else {
+                if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(chars.charAt(i + 1)))
+                    i++;
+                dest[offset++] = '?';
+            }
+        }
+        return offset - start;
+    }
+    
+    //The number of bytes chars take in a single byte charset
+    static int singleByteLength(CharSequence chars) {
+        int length = chars.length();
+        int bytes = length;
+        for (int i = 0; i < length - 1; i++) {
+            if (Character.isHighSurrogate(chars.charAt(i)) && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                bytes--;
+                i++;
+            }
+        }
+        return bytes;
+    }
+    
+    //The number of bytes chars take in UTF-8
+    static int utf8Length(CharSequence chars) {
+        int length = chars.length();
+        long bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = chars.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isSurrogate(c)) {
+                    if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                        bytes += 2; //4 bytes for 2 chars
+                        i++;
+                    }
+                } else {
+                    bytes += 2;
+                }
+            } else if (c >= 0x80) {
+                bytes++;
+            }
+        }
+        if (bytes > Integer.MAX_VALUE)
+            throw new ETFException("Binary is too large to write!");
+        return (int) bytes;
     }
     
     public ETFWriter writeBinary(byte[] bin) {
-        writeToBuffer(BINARY_EXT);
-        writeToBuffer((byte) ((bin.length >>> 24) & 0xff), (byte) ((bin.length >>> 16) & 0xff),
-                (byte) ((bin.length >>> 8) & 0xFF), (byte) (bin.length & 0xff));
-        writeToBuffer(bin);
+        element();
+        writeHeader(BINARY_EXT, bin.length);
+        if (isReferenced(bin.length))
+            reference(ByteBuffer.wrap(bin));
+        else
+            putBytes(bin, 0, bin.length);
+        return this;
+    }
+    
+    /**
+     * This writes the remaining bytes of a buffer as a binary, the buffer's position is not changed.
+     *
+     * @param bin The binary.
+     * @return The current writer instance.
+     */
+    public ETFWriter writeBinary(ByteBuffer bin) {
+        element();
+        ByteBuffer data = bin.duplicate();
+        writeHeader(BINARY_EXT, data.remaining());
+        if (isReferenced(data.remaining()))
+            reference(data);
+        else
+            putBuffer(data);
+        return this;
+    }
+    
+    /**
+     * This writes a term which has already been encoded by copying it verbatim.
+     *
+     * @param term The encoded term.
+     * @return The current writer instance.
+     */
+    public ETFWriter writeRawTerm(RawTerm term) {
+        element();
+        if (isReferenced(term.size()))
+            reference(ByteBuffer.wrap(term.getData()));
+        else
+            putBytes(term.getData(), 0, term.size());
+        return this;
+    }
+    
+    //Copies an object's cached encoding, encoding and caching it first if it has changed
+    private void writeVersioned(Versioned o) {
+        long version = o.getVersionStamp();
+        int mode = (loqui ? 1 : 0) | (bert ? 2 : 0); //The settings which change how objects are encoded
+        RawTerm term = encodingCache.get(o, version, mode);
+        if (term == null) {
+            ETFWriter encoder = new ETFWriter(config, true);
+            encoder.maxDepth = maxDepth - depth;
+            encoder.uncached = o;
+            encoder.write(o);
+            if (encoder.slots != null)
+                throw new ETFException("Template slots can't be written in versioned objects!");
+            
+            term = encoder.toRawTerm();
+            encodingCache.put(o, version, mode, term);
+        }
+        writeRawTerm(term);
+    }
+    
+    //Writes a template slot's placeholder and records where it is in the message
+    private void writeSlot(ETFTemplate.Slot slot) {
+        if (slots == null)
+            slots = new IdentityHashMap<>();
+        if (slots.put(slot, (int) (buffer.position() + referencedBytes)) != null)
+            throw new ETFException("A slot can only be used once per template!");
+        
+        byte[] placeholder = slot.placeholder();
+        putBytes(placeholder, 0, placeholder.length);
+    }
+    
+    //The positions of the template slots which have been written
+    Map<ETFTemplate.Slot, Integer> slots() {
+        return slots == null ? Collections.emptyMap() : slots;
+    }
+    
+    private boolean isReferenced(int length) {
+        return segmentThreshold > 0 && pinned == 0 && length >= segmentThreshold; //Open containers are scanned in place
+    }
+    
+    //Records a binary to be sent as its own segment at the current position
+    private void reference(ByteBuffer data) {
+        if (buffer.position() + referencedBytes + data.remaining() > Integer.MAX_VALUE)
+            throw new ETFException("Term is too large to write!");
+        
+        if (segments == null)
+            segments = new ArrayList<>();
+        segments.add(new Segment(buffer.position(), data.slice()));
+        referencedBytes += data.remaining();
+    }
+    
+    //Copies a buffer's bytes into the writer's buffer, streaming writers send buffers larger than theirs straight to the
+    //sink when they can
+    private void putBuffer(ByteBuffer data) {
+        if (streaming && pinned == 0 && data.remaining() > buffer.capacity() && (channel != null || data.hasArray())) {
+            flush();
+            writeToSink(data);
+            return;
+        }
+        
+        while (data.hasRemaining()) {
+            ensureCapacity(streaming ? 1 : data.remaining());
+            int limit = data.limit();
+            data.limit(data.position() + Math.min(data.remaining(), buffer.remaining()));
+            buffer.put(data);
+            data.limit(limit);
+        }
+    }
+    
+    /**
+     * This writes a binary of a known length by reading its bytes straight from a stream into the writer's buffer,
+     * without copying them into an intermediate array.
+     *
+     * @param in The stream to read the binary from.
+     * @param length The number of bytes to read.
+     * @return The current writer instance (for chaining).
+     *
+     * @throws com.austinv11.etf.util.ETFException When the stream ends before length bytes are read.
+     */
+    public ETFWriter writeBinary(InputStream in, long length) {
+        element();
+        reserveBinary(length);
+        try {
+            byte[] chunk = buffer.hasArray() ? null : new byte[Math.min((int) length, 8192)]; //Direct buffers need a staging array
+            int remaining = (int) length;
+            while (remaining > 0) {
+                ensureCapacity(1); //Streaming writers flush once their buffer is full
+                int read;
+                if (chunk == null) {
+                    read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                            Math.min(remaining, buffer.remaining()));
+                    if (read > 0)
+                        buffer.position(buffer.position() + read);
+                } else {
+                    read = in.read(chunk, 0, Math.min(remaining, Math.min(buffer.remaining(), chunk.length)));
+                    if (read > 0)
+                        buffer.put(chunk, 0, read);
+                }
+                if (read < 0)
+                    throw new ETFException("Stream ended " + remaining + " bytes before the binary was complete!");
+                remaining -= read;
+            }
+        } catch (IOException e) {
+            throw new ETFException(e);
+        }
+        return this;
+    }
+    
+    /**
+     * This writes a binary of a known length by reading its bytes straight from a channel into the writer's buffer,
+     * without copying them into an intermediate array.
+     *
+     * @param channel The channel to read the binary from.
+     * @param length The number of bytes to read.
+     * @return The current writer instance (for chaining).
+     *
+     * @throws com.austinv11.etf.util.ETFException When the channel ends before length bytes are read.
+     */
+    public ETFWriter writeBinary(ReadableByteChannel channel, long length) {
+        element();
+        reserveBinary(length);
+        try {
+            int remaining = (int) length;
+            while (remaining > 0) {
+                ensureCapacity(1); //Streaming writers flush once their buffer is full
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + Math.min(remaining, buffer.remaining()));
+                int read;
+                try {
+                    read = channel.read(buffer);
+                } finally {
+                    buffer.limit(limit);
+                }
+                if (read < 0)
+                    throw new ETFException("Channel ended " + remaining + " bytes before the binary was complete!");
+                remaining -= read;
+            }
+        } catch (IOException e) {
+            throw new ETFException(e);
+        }
         return this;
     }
     
+    //Writes a binary header and makes room for the binary's bytes to be read directly into the buffer
+    private void reserveBinary(long length) {
+        if (length < 0 || length > Integer.MAX_VALUE - 5 - (streaming ? 0 : buffer.position()))
+            throw new ETFException("Binary length " + length + " is too large!");
+        
+        ensureCapacity(5 + (streaming ? 0 : (int) length));
+        buffer.put(BINARY_EXT).putInt((int) length);
+    }
+    
     public ETFWriter writeBitString(String string) {
+        element();
         byte[] bytes = string.getBytes();
-        writeToBuffer(BINARY_EXT);
-        writeToBuffer((byte) ((bytes.length >>> 24) & 0xff), (byte) ((bytes.length >>> 16) & 0xff),
-                (byte) ((bytes.length >>> 8) & 0xFF), (byte) (bytes.length & 0xff));
         int unsigned = Byte.toUnsignedInt(bytes[bytes.length-1]);
         int i = 1;
         while (i < unsigned)
             i <<= 1;
-        writeToBuffer((byte) (i-1));
-        writeToBuffer(bytes);
+        ensureCapacity(6);
+        buffer.put(BINARY_EXT).putInt(bytes.length).put((byte) (i-1));
+        putBytes(bytes, 0, bytes.length);
         return this;
     }
     
     public ETFWriter writeErlangString(String string) {
-        char[] chars = string.toCharArray();
-        writeToBuffer(STRING_EXT);
-        writeToBuffer((byte) ((chars.length >>> 8) & 0xff), (byte) (chars.length & 0xff));
-        for (char character : chars)
-            writeToBuffer((byte) character);
+        element();
+        int length = string.length();
+        ensureCapacity(3 + length);
+        buffer.put(STRING_EXT).putShort((short) length);
+        for (int i = 0; i < length; i++)
+            buffer.put((byte) string.charAt(i));
         return this;
     }
     
@@ -219,213 +816,758 @@ public class ETFWriter {
     }
     
     public <T> ETFWriter writeSmallTuple(Collection<T> tuple) {
+        element();
+        int base = depth;
+        pushSmallTuple(tuple);
+        drain(base);
+        return this;
+    }
+    
+    public <T> ETFWriter writeSmallTuple(T[] tuple) {
+        element();
+        int base = depth;
+        pushSmallTuple(tuple);
+        drain(base);
+        return this;
+    }
+    
+    public <T> ETFWriter writeLargeTuple(Collection<T> tuple) {
+        element();
+        int base = depth;
+        pushLargeTuple(tuple);
+        drain(base);
+        return this;
+    }
+    
+    public <T> ETFWriter writeLargeTuple(T[] tuple) {
+        element();
+        int base = depth;
+        pushLargeTuple(tuple);
+        drain(base);
+        return this;
+    }
+    
+    public <T> ETFWriter writeTuple(Collection<T> tuple) {
+        if (tuple.size() > 255)
+            writeLargeTuple(tuple);
+        else
+            writeSmallTuple(tuple);
+        return this;
+    }
+    
+    public <T> ETFWriter writeTuple(T[] tuple) {
+        if (tuple.length > 255)
+            writeLargeTuple(tuple);
+        else
+            writeSmallTuple(tuple);
+        return this;
+    }
+    
+    public ETFWriter writeTuple(boolean[] tuple) {
+        element();
+        writeTupleHeader(tuple.length);
+        children(tuple.length);
+        for (boolean bool : tuple)
+            writeBoolean(bool);
+        return this;
+    }
+    
+    public ETFWriter writeTuple(short[] tuple) {
+        element();
+        writeTupleHeader(tuple.length);
+        children(tuple.length);
+        for (short num : tuple)
+            writeInt(num);
+        return this;
+    }
+    
+    public ETFWriter writeTuple(int[] tuple) {
+        element();
+        writeTupleHeader(tuple.length);
+        children(tuple.length);
+        for (int num : tuple)
+            writeInt(num);
+        return this;
+    }
+    
+    public ETFWriter writeTuple(long[] tuple) {
+        element();
+        writeTupleHeader(tuple.length);
+        children(tuple.length);
+        for (long num : tuple)
+            writeLong(num);
+        return this;
+    }
+    
+    public ETFWriter writeTuple(float[] tuple) {
+        element();
+        writeTupleHeader(tuple.length);
+        children(tuple.length);
+        for (float num : tuple)
+            writeFloat(num);
+        return this;
+    }
+    
+    public ETFWriter writeTuple(double[] tuple) {
+        element();
+        writeTupleHeader(tuple.length);
+        children(tuple.length);
+        for (double num : tuple)
+            writeFloat(num);
+        return this;
+    }
+    
+    private void writeTupleHeader(int arity) {
+        if (arity > 255) {
+            writeHeader(LARGE_TUPLE_EXT, arity);
+        } else {
+            ensureCapacity(2);
+            buffer.put(SMALL_TUPLE_EXT).put((byte) arity);
+        }
+    }
+    
+    public <K, V> ETFWriter writeMap(Map<K, V> map) {
+        element();
+        int base = depth;
+        pushMap(map);
+        drain(base);
+        return this;
+    }
+    
+    /**
+     * This writes the header of a map, which must be followed by exactly size keys and values, each written as its own
+     * term. Unlike {@link #beginMap()}, the size has to be known up front.
+     *
+     * @param size The number of key/value pairs which follow.
+     * @return The current writer instance.
+     */
+    public ETFWriter writeMapHeader(int size) {
+        if (size < 0)
+            throw new ETFException("Map size " + size + " is negative!");
+        
+        element();
+        writeHeader(MAP_EXT, size);
+        children(2 * size);
+        return this;
+    }
+    
+    public ETFWriter writeMap(Object o) {
+        element();
+        if (o instanceof Versioned && encodingCache != null && o != uncached) {
+            writeVersioned((Versioned) o);
+            return this;
+        }
+        
+        int base = depth;
+        pushMap(o);
+        drain(base);
+        return this;
+    }
+    
+    public ETFWriter writeNil() {
+        return writeNil(false);
+    }
+    
+    public ETFWriter writeNil(boolean forceNonLoqui) {
+        element();
+        if (loqui && !forceNonLoqui)
+            writeAtom("nil");
+        else
+            writeTail();
+        return this;
+    }
+    
+    //Writes the nil which ends a proper list
+    private void writeTail() {
+        ensureCapacity(1);
+        buffer.put(NIL_EXT);
+    }
+    
+    public <T> ETFWriter writeList(Collection<T> list) {
+        element();
+        int base = depth;
+        pushList(list);
+        drain(base);
+        return this;
+    } 
+    
+    public <T> ETFWriter writeList(T[] list) {
+        element();
+        int base = depth;
+        pushList(list);
+        drain(base);
+        return this;
+    }
+    
+    /**
+     * This writes the elements of an iterator as a list, the list's length is patched in once the iterator runs out.
+     * Streaming writers hold onto the list until then rather than flushing it.
+     *
+     * @param list The elements.
+     * @return The current writer instance.
+     */
+    public <T> ETFWriter writeList(Iterator<T> list) {
+        element();
+        int base = depth;
+        pushList(list);
+        drain(base);
+        return this;
+    }
+    
+    /**
+     * This writes the elements of a stream as a list, they are written as the stream produces them.
+     *
+     * @param list The elements.
+     * @return The current writer instance.
+     *
+     * @see #writeList(Iterator)
+     */
+    public <T> ETFWriter writeList(Stream<T> list) {
+        return writeList(list.iterator());
+    }
+    
+    /**
+     * This starts a list whose length isn't known yet, every term written until the matching {@link #end()} is an
+     * element of the list. Streaming writers hold onto the list until it is ended rather than flushing it.
+     *
+     * @return The current writer instance.
+     */
+    public ETFWriter beginList() {
+        return begin(LIST_EXT);
+    }
+    
+    /**
+     * This starts a map whose size isn't known yet, every pair of terms written until the matching {@link #end()} is
+     * a key followed by its value. Streaming writers hold onto the map until it is ended rather than flushing it.
+     *
+     * @return The current writer instance.
+     */
+    public ETFWriter beginMap() {
+        return begin(MAP_EXT);
+    }
+    
+    private ETFWriter begin(byte type) {
+        if (begunCount >= maxDepth)
+            throw new ETFException("Maximum nesting depth of " + maxDepth + " exceeded!");
+        
+        element(); //The list or map is an element of the one it's in
+        if (2 * begunCount == begun.length)
+            begun = Arrays.copyOf(begun, begun.length * 2);
+        begun[2 * begunCount] = buffer.position();
+        begun[2 * begunCount + 1] = 0;
+        begunCount++;
+        pinned++;
+        lastElement = buffer.position(); //So the first element is never mistaken for a term written before
+        writeHeader(type, 0); //Patched by end()
+        return this;
+    }
+    
+    //Counts a term written straight into the list or map last started with beginList()/beginMap(), write methods
+    //which call each other start at the same position so their term is only counted once
+    private void element() {
+        if (begunCount > 0 && depth == 0 && buffer.position() != lastElement) {
+            lastElement = buffer.position();
+            begun[2 * begunCount - 1]++;
+        }
+    }
+    
+    //The children of a header are counted as they're written, but they aren't elements of the list or map themselves
+    private void children(int count) {
+        if (begunCount > 0 && depth == 0)
+            begun[2 * begunCount - 1] -= count;
+    }
+    
+    /**
+     * This ends the last list or map started with {@link #beginList()} or {@link #beginMap()}, its length is the
+     * number of terms written into it since then.
+     *
+     * @return The current writer instance.
+     *
+     * @throws com.austinv11.etf.util.ETFException When there is no list or map to end, or a map has a key without a
+     * value.
+     */
+    public ETFWriter end() {
+        if (begunCount == 0)
+            throw new ETFException("There is no list or map to end!");
+        
+        begunCount--;
+        int header = begun[2 * begunCount];
+        int count = begun[2 * begunCount + 1];
+        if (buffer.get(header) == MAP_EXT) {
+            if (count % 2 != 0)
+                throw new ETFException("Map has a key without a value!");
+            count /= 2;
+        }
+        buffer.putInt(header + 1, count);
+        pinned--;
+        
+        if (buffer.get(header) == LIST_EXT)
+            writeTail();
+        return this;
+    }
+    
+    public ETFWriter writeList(boolean[] list) {
+        element();
+        writeHeader(LIST_EXT, list.length);
+        children(list.length);
+        for (boolean bool : list)
+            writeBoolean(bool);
+        writeTail();
+        return this;
+    }
+    
+    /**
+     * This writes a list of shorts, lists of bytes (0-255) are written as a string like erlang does.
+     *
+     * @param list The list.
+     * @return The current writer instance.
+     */
+    public ETFWriter writeList(short[] list) {
+        element();
+        if (isByteString(list)) {
+            ensureCapacity(streaming ? 3 : 3 + list.length);
+            buffer.put(STRING_EXT).putShort((short) list.length);
+            for (short num : list) {
+                if (!buffer.hasRemaining())
+                    ensureCapacity(1);
+                buffer.put((byte) num);
+            }
+            return this;
+        }
+        
+        writeHeader(LIST_EXT, list.length);
+        children(list.length);
+        for (short num : list)
+            writeInt(num);
+        writeTail();
+        return this;
+    }
+    
+    /**
+     * This writes a list of ints, lists of bytes (0-255) are written as a string like erlang does.
+     *
+     * @param list The list.
+     * @return The current writer instance.
+     */
+    public ETFWriter writeList(int[] list) {
+        element();
+        if (isByteString(list)) {
+            ensureCapacity(streaming ? 3 : 3 + list.length);
+            buffer.put(STRING_EXT).putShort((short) list.length);
+            for (int num : list) {
+                if (!buffer.hasRemaining())
+                    ensureCapacity(1);
+                buffer.put((byte) num);
+            }
+            return this;
+        }
+        
+        writeHeader(LIST_EXT, list.length);
+        children(list.length);
+        for (int num : list)
+            writeInt(num);
+        writeTail();
+        return this;
+    }
+    
+    public ETFWriter writeList(long[] list) {
+        element();
+        writeHeader(LIST_EXT, list.length);
+        children(list.length);
+        for (long num : list)
+            writeLong(num);
+        writeTail();
+        return this;
+    }
+    
+    public ETFWriter writeList(float[] list) {
+        element();
+        writeHeader(LIST_EXT, list.length);
+        children(list.length);
+        for (float num : list)
+            writeFloat(num);
+        writeTail();
+        return this;
+    }
+    
+    public ETFWriter writeList(double[] list) {
+        element();
+        writeHeader(LIST_EXT, list.length);
+        children(list.length);
+        for (double num : list)
+            writeFloat(num);
+        writeTail();
+        return this;
+    }
+    
+    //Whether a list can be written as a STRING_EXT
+    static boolean isByteString(short[] list) {
+        if (list.length == 0 || list.length > 0xFFFF)
+            return false;
+        
+        for (short num : list)
+            if ((num & ~0xFF) != 0)
+                return false;
+        return true;
+    }
+    
+    static boolean isByteString(int[] list) {
+        if (list.length == 0 || list.length > 0xFFFF)
+            return false;
+        
+        for (int num : list)
+            if ((num & ~0xFF) != 0)
+                return false;
+        return true;
+    }
+    
+    private <T> void pushSmallTuple(Collection<T> tuple) {
         int arity = (tuple.size() & 0xFF);
-        writeToBuffer(SMALL_TUPLE_EXT, (byte) arity);
-        Iterator<T> iterator = tuple.iterator();
-        for (int i = 0; i < arity; i++)
-            write(iterator.next());
-        return this;
+        ensureCapacity(2);
+        buffer.put(SMALL_TUPLE_EXT).put((byte) arity);
+        push(tuple.iterator(), arity, false, false);
     }
     
-    public <T> ETFWriter writeSmallTuple(T[] tuple) {
+    private <T> void pushSmallTuple(T[] tuple) {
         int arity = (tuple.length & 0xFF);
-        writeToBuffer(SMALL_TUPLE_EXT, (byte) arity);
-        for (int i = 0; i < arity; i++)
-            write(tuple[i]);
-        return this;
+        ensureCapacity(2);
+        buffer.put(SMALL_TUPLE_EXT).put((byte) arity);
+        push(tuple, arity);
     }
     
-    //TODO primitive tuples
-    
-    public <T> ETFWriter writeLargeTuple(Collection<T> tuple) {
-        writeToBuffer(LARGE_TUPLE_EXT, (byte) ((tuple.size() >>> 24) & 0xFF),
-                (byte) ((tuple.size() >>> 16) & 0xFF), (byte) ((tuple.size() >>> 8) & 0xFF),
-                (byte) (tuple.size() & 0xFF));
-        Iterator<T> iterator = tuple.iterator();
-        for (int i = 0; i < tuple.size(); i++)
-            write(iterator.next());
-        return this;
+    private <T> void pushLargeTuple(Collection<T> tuple) {
+        writeHeader(LARGE_TUPLE_EXT, tuple.size());
+        push(tuple.iterator(), tuple.size(), false, false);
     }
     
-    public <T> ETFWriter writeLargeTuple(T[] tuple) {
-        writeToBuffer(LARGE_TUPLE_EXT, (byte) ((tuple.length >>> 24) & 0xFF),
-                (byte) ((tuple.length >>> 16) & 0xFF), (byte) ((tuple.length >>> 8) & 0xFF),
-                (byte) (tuple.length & 0xFF));
-        for (int i = 0; i < tuple.length; i++)
-            write(tuple[i]);
-        return this;
+    private <T> void pushLargeTuple(T[] tuple) {
+        writeHeader(LARGE_TUPLE_EXT, tuple.length);
+        push(tuple, tuple.length);
     }
     
-    //TODO primitive tuples
+    private <T> void pushTuple(Collection<T> tuple) {
+        if (tuple.size() > 255)
+            pushLargeTuple(tuple);
+        else
+            pushSmallTuple(tuple);
+    }
     
-    public <T> ETFWriter writeTuple(Collection<T> tuple) {
-        if (tuple.size() > 256)
-            writeSmallTuple(tuple);
+    private <T> void pushTuple(T[] tuple) {
+        if (tuple.length > 255)
+            pushLargeTuple(tuple);
         else
-            writeLargeTuple(tuple);
-        return this;
+            pushSmallTuple(tuple);
     }
     
-    public <T> ETFWriter writeTuple(T[] tuple) {
-        if (tuple.length > 256)
-            writeSmallTuple(tuple);
+    private <K, V> void pushMap(Map<K, V> map) {
+        writeHeader(MAP_EXT, map.size());
+        if (isParallel(map.size()))
+            writeParallel(map.entrySet().toArray(), true);
         else
-            writeLargeTuple(tuple);
-        return this;
+            push(map.entrySet().iterator(), map.size(), true, false);
     }
     
-    //TODO primitive tuples
+    private void pushMap(Object o) {
+        if (o instanceof Map) {
+            pushMap((Map) o);
+        } else {
+            pushObject(o);
+        }
+    }
     
-    public <K, V> ETFWriter writeMap(Map<K, V> map) {
-        writeToBuffer(MAP_EXT, (byte) ((map.size() >>> 24) & 0xFF),
-                (byte) ((map.size() >>> 16) & 0xFF), (byte) ((map.size() >>> 8) & 0xFF),
-                (byte) (map.size() & 0xFF));
-        for (K key : map.keySet()) {
-            write(key);
-            write(map.get(key));
+    //Writes an object's properties as a map, straight from its class's layout
+    private void pushObject(Object o) {
+        ObjectLayout layout = ObjectLayout.of(o.getClass());
+        writeHeader(MAP_EXT, layout.properties.length);
+        Frame frame = push();
+        frame.object = o;
+        frame.layout = layout;
+        frame.length = layout.properties.length;
+    }
+    
+    //Writes a primitive property without boxing it, returning false if the property isn't one
+    private boolean writePrimitive(Object o, ReflectionUtils.PropertyMetadata property) {
+        Class<?> type = property.getGetterType();
+        if (!type.isPrimitive())
+            return false;
+        
+        if (type == int.class || type == short.class || type == byte.class)
+            writeInt(property.getInt(o));
+        else if (type == long.class)
+            writeLong(property.getLong(o));
+        else if (type == double.class || type == float.class)
+            writeFloat(property.getDouble(o));
+        else if (type == boolean.class)
+            writeBoolean(property.getBoolean(o));
+        else
+            return false; //Chars are written as atoms
+        return true;
+    }
+    
+    private <T> void pushList(Collection<T> list) {
+        if (isParallel(list.size())) {
+            pushList(list.toArray());
+            return;
         }
-        return this;
+        
+        writeHeader(LIST_EXT, list.size());
+        push(list.iterator(), list.size(), false, true);
     }
     
-    public ETFWriter writeMap(Object o) {
-        if (o instanceof Map) {
-            return writeMap((Map) o);
+    private <T> void pushList(T[] list) {
+        writeHeader(LIST_EXT, list.length);
+        if (isParallel(list.length)) {
+            writeParallel(list, false);
+            writeTail();
         } else {
-            Map<String, Object> properties = new HashMap<>();
-            for (ReflectionUtils.PropertyManager property : ReflectionUtils.findProperties(o, o.getClass())) {
-                if (property.getGetterType().isEnum())
-                    properties.put(property.getName(), Enum.valueOf((Class) property.getGetterType(), property.getValue().toString()));
+            push(list, list.length).list = true;
+        }
+    }
+    
+    private boolean isParallel(int size) {
+        return parallelThreshold > 0 && size >= parallelThreshold;
+    }
+    
+    //Encodes ranges of the elements (map entries when map is true) on the parallel pool, then stitches them together
+    //in order. Large fragments are referenced rather than copied, like large binaries.
+    private void writeParallel(Object[] elements, boolean map) {
+        if (depth >= maxDepth)
+            throw new ETFException("Maximum nesting depth of " + maxDepth + " exceeded!");
+        
+        int chunks = Math.min(parallelPool.getParallelism() * 4,
+                (elements.length + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE);
+        ETFWriter[] fragments = new ETFWriter[chunks];
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[chunks];
+        for (int i = 0; i < chunks; i++) {
+            int chunk = i;
+            int from = (int) ((long) elements.length * chunk / chunks);
+            int to = (int) ((long) elements.length * (chunk + 1) / chunks);
+            tasks[i] = ForkJoinTask.adapt(() -> fragments[chunk] = writeFragment(elements, from, to, map));
+        }
+        parallelPool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        
+        for (ETFWriter fragment : fragments) {
+            if (fragment.slots != null)
+                throw new ETFException("Template slots can't be written in parallel!");
+            
+            ByteBuffer[] views = fragment.segmentViews();
+            views[0].position(views[0].position() + 1); //Skip the version byte
+            for (ByteBuffer view : views) {
+                if (isReferenced(view.remaining()))
+                    reference(view);
                 else
-                    properties.put(property.getName(), property.getValue());
+                    putBuffer(view);
             }
-            return writeMap(properties);
         }
     }
     
-    public ETFWriter writeNil() {
-        return writeNil(false);
+    private ETFWriter writeFragment(Object[] elements, int from, int to, boolean map) {
+        ETFWriter fragment = new ETFWriter(config, true);
+        fragment.parallelThreshold = 0;
+        fragment.maxDepth = maxDepth - depth - 1; //The elements are nested in the collection
+        for (int i = from; i < to; i++) {
+            if (map) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) elements[i];
+                if (entry.getKey() instanceof String)
+                    fragment.writeString((String) entry.getKey(), true);
+                else
+                    fragment.write(entry.getKey());
+                fragment.write(entry.getValue());
+            } else {
+                fragment.write(elements[i]);
+            }
+        }
+        return fragment;
     }
     
-    public ETFWriter writeNil(boolean forceNonLoqui) {
-        if (loqui && !forceNonLoqui)
-            writeAtom("nil");
-        else
-            writeToBuffer(NIL_EXT);
-        return this;
+    private <T> void pushList(Iterator<T> list) {
+        Frame frame = push(list, Integer.MAX_VALUE, false, true);
+        pinned++; //Before the header is written so it can't be flushed
+        frame.header = buffer.position();
+        writeHeader(LIST_EXT, 0); //Patched once the iterator runs out
     }
     
-    public <T> ETFWriter writeList(Collection<T> list) {
-        writeToBuffer(LIST_EXT, (byte) ((list.size() >>> 24) & 0xFF),
-                (byte) ((list.size() >>> 16) & 0xFF), (byte) ((list.size() >>> 8) & 0xFF),
-                (byte) (list.size() & 0xFF));
-        for (T obj : list)
-            write(obj);
-        writeNil(true); //The tail is nil so that this can be a proper list
-        return this;
-    } 
+    private Frame push() {
+        if (depth >= maxDepth)
+            throw new ETFException("Maximum nesting depth of " + maxDepth + " exceeded!");
+        
+        if (depth == frames.length)
+            frames = Arrays.copyOf(frames, depth * 2);
+        
+        Frame frame = frames[depth];
+        if (frame == null)
+            frame = frames[depth] = new Frame();
+        depth++;
+        return frame;
+    }
     
-    public <T> ETFWriter writeList(T[] list) {
-        writeToBuffer(LIST_EXT, (byte) ((list.length >>> 24) & 0xFF),
-                (byte) ((list.length >>> 16) & 0xFF), (byte) ((list.length >>> 8) & 0xFF),
-                (byte) (list.length & 0xFF));
-        for (T obj : list)
-            write(obj);
-        writeNil(true); //The tail is nil so that this can be a proper list
-        return this;
+    private Frame push(Iterator<?> iterator, int length, boolean map, boolean list) {
+        Frame frame = push();
+        frame.iterator = iterator;
+        frame.length = length;
+        frame.map = map;
+        frame.list = list;
+        return frame;
+    }
+    
+    private Frame push(Object[] array, int length) {
+        Frame frame = push();
+        frame.array = array;
+        frame.length = length;
+        return frame;
     }
     
-    //TODO primitive lists
+    //Writes the elements of every open container until the stack unwinds back to base, nested containers are pushed
+    //onto an explicit stack rather than recursed into so deeply nested terms can't overflow the call stack
+    private void drain(int base) {
+        try {
+            while (depth > base) {
+                Frame frame = frames[depth - 1];
+                Object next;
+                if (frame.hasValue) {
+                    next = frame.value;
+                    frame.value = null;
+                    frame.hasValue = false;
+                } else if (frame.index < frame.length && (frame.header < 0 || frame.iterator.hasNext())) {
+                    frame.index++;
+                    if (frame.array != null) {
+                        next = frame.array[frame.index - 1];
+                    } else if (frame.layout != null) {
+                        ReflectionUtils.PropertyMetadata property = frame.layout.properties[frame.index - 1];
+                        byte[] key = (loqui ? frame.layout.loquiKeys : frame.layout.keys)[frame.index - 1];
+                        putBytes(key, 0, key.length);
+                        if (writePrimitive(frame.object, property))
+                            continue;
+                        next = property.getValue(frame.object);
+                    } else if (frame.map) {
+                        Map.Entry<?, ?> entry = (Map.Entry<?, ?>) frame.iterator.next();
+                        next = entry.getKey();
+                        frame.value = entry.getValue();
+                        frame.hasValue = true;
+                        if (next instanceof String) { //Keys repeat across messages, so their atoms are worth caching
+                            writeString((String) next, true);
+                            continue;
+                        }
+                    } else {
+                        next = frame.iterator.next();
+                    }
+                } else {
+                    boolean list = frame.list;
+                    if (frame.header >= 0) { //The length wasn't known up front
+                        buffer.putInt(frame.header + 1, frame.index);
+                        pinned--;
+                    }
+                    frame.clear();
+                    depth--;
+                    if (list)
+                        writeTail(); //The tail is nil so that this can be a proper list
+                    continue;
+                }
+                writeValue(next);
+            }
+        } catch (RuntimeException e) {
+            while (depth > base) {
+                if (frames[--depth].header >= 0)
+                    pinned--;
+                frames[depth].clear();
+            }
+            throw e;
+        }
+    }
     
     public ETFWriter writeSmallBig(BigInteger num) {
+        element();
         if (num.equals(BigInteger.ZERO)) {
-            writeToBuffer(SMALL_BIG_EXT, (byte) 0, (byte) 0);
+            ensureCapacity(3);
+            buffer.put(SMALL_BIG_EXT).put((byte) 0).put((byte) 0);
         } else {
             byte signum = num.signum() == -1 ? (byte) 1 : (byte) 0;
             num = num.abs();
-            int n = (int) Math.ceil(num.bitLength()/8)+1; //Equivalent to Math.ceil(log256(num)) + 1
-            byte[] bytes = new byte[n];
-            writeToBuffer(SMALL_BIG_EXT, (byte) (n & 0xFF), signum);
-            n -= 1;
-            while (n >= 0) {
-                BigInteger[] res = num.divideAndRemainder(BigInteger.valueOf(256).pow(n));
-                bytes[n] = res[0].byteValue(); //Quotient
-                num = res[1]; //Remainder
-                n--;
-            }
-            writeToBuffer(bytes);
+            int n = digitCount(num);
+            ensureCapacity(3 + n);
+            buffer.put(SMALL_BIG_EXT).put((byte) n).put(signum);
+            writeDigits(num.toByteArray(), n);
         }
         return this;
     }
     
     public ETFWriter writeSmallBig(long num, byte sign) {
+        element();
         if (num == 0) {
-            writeToBuffer(SMALL_BIG_EXT, (byte) 0, (byte) 0);
+            ensureCapacity(3);
+            buffer.put(SMALL_BIG_EXT).put((byte) 0).put((byte) 0);
         } else {
             byte signum = sign < 0 ? (byte) 1 : (byte) 0;
             num = Math.abs(num);
-            int n = (int) Math.ceil(Math.log(num)/Math.log(256))+1; //Equivalent to Math.ceil(log256(num)) + 1
-            byte[] bytes = new byte[n];
-            writeToBuffer(SMALL_BIG_EXT, (byte) (n & 0xFF), signum);
-            n -= 1;
-            while (n >= 0) {
-                long rem = num%(long) Math.pow(256, n);
-                long quo = num/(long) Math.pow(256, n);
-                bytes[n] = (byte) quo;
-                num = rem;
-                n--;
-            }
-            writeToBuffer(bytes);
+            int n = digitCount(num);
+            ensureCapacity(3 + n);
+            buffer.put(SMALL_BIG_EXT).put((byte) n).put(signum);
+            writeDigits(num, n);
         }
         return this;
     }
     
     public ETFWriter writeLargeBig(BigInteger num) {
+        element();
         if (num.equals(BigInteger.ZERO)) {
-            writeToBuffer(LARGE_BIG_EXT, (byte) 0, (byte) 0, (byte) 0, (byte) 0, (byte) 0);
+            ensureCapacity(6);
+            buffer.put(LARGE_BIG_EXT).putInt(0).put((byte) 0);
         } else {
             byte signum = num.signum() == -1 ? (byte) 1 : (byte) 0;
             num = num.abs();
-            int n = (int) Math.ceil(num.bitLength()/8)+1; //Equivalent to Math.ceil(log256(num)) + 1
-            byte[] bytes = new byte[n];
-            writeToBuffer(LARGE_BIG_EXT, (byte) ((n >>> 24) & 0xFF), (byte) ((n >>> 16) & 0xFF),
-                    (byte) ((n >>> 8) & 0xFF), (byte) (n & 0xFF), signum);
-            n -= 1;
-            while (n >= 0) {
-                BigInteger[] res = num.divideAndRemainder(BigInteger.valueOf(256).pow(n));
-                bytes[n] = res[0].byteValue(); //Quotient
-                num = res[1]; //Remainder
-                n--;
-            }
-            writeToBuffer(bytes);
+            int n = digitCount(num);
+            ensureCapacity(6 + n);
+            buffer.put(LARGE_BIG_EXT).putInt(n).put(signum);
+            writeDigits(num.toByteArray(), n);
         }
         return this;
     }
     
     public ETFWriter writeLargeBig(long num, byte sign) {
+        element();
         if (num == 0) {
-            writeToBuffer(LARGE_BIG_EXT, (byte) 0, (byte) 0, (byte) 0, (byte) 0, (byte) 0);
+            ensureCapacity(6);
+            buffer.put(LARGE_BIG_EXT).putInt(0).put((byte) 0);
         } else {
             byte signum = sign < 0 ? (byte) 1 : (byte) 0;
             num = Math.abs(num);
-            int n = (int) Math.ceil(Math.log(num)/Math.log(256))+1; //Equivalent to Math.ceil(log256(num)) + 1
-            byte[] bytes = new byte[n];
-            writeToBuffer(LARGE_BIG_EXT, (byte) ((n >>> 24) & 0xFF), (byte) ((n >>> 16) & 0xFF),
-                    (byte) ((n >>> 8) & 0xFF), (byte) (n & 0xFF), signum);
-            n -= 1;
-            while (n >= 0) {
-                long rem = num%(long) Math.pow(256, n);
-                long quo = num/(long) Math.pow(256, n);
-                bytes[n] = (byte) quo;
-                num = rem;
-                n--;
-            }
-            writeToBuffer(bytes);
+            int n = digitCount(num);
+            ensureCapacity(6 + n);
+            buffer.put(LARGE_BIG_EXT).putInt(n).put(signum);
+            writeDigits(num, n);
         }
         return this;
     }
     
+    //The number of bytes in a big number's magnitude
+    static int digitCount(BigInteger num) {
+        return (num.abs().bitLength() + 7) / 8;
+    }
+    
+    //The number of bytes in a magnitude, which is treated as unsigned so that Math.abs(Long.MIN_VALUE) works
+    static int digitCount(long magnitude) {
+        return (Long.SIZE - Long.numberOfLeadingZeros(magnitude) + 7) / 8;
+    }
+    
+    //Writes the n least significant bytes of a big-endian magnitude in little-endian order
+    private void writeDigits(byte[] magnitude, int n) {
+        for (int i = 1; i <= n; i++)
+            buffer.put(i <= magnitude.length ? magnitude[magnitude.length - i] : 0);
+    }
+    
+    //Writes the n least significant bytes of a magnitude in little-endian order
+    private void writeDigits(long magnitude, int n) {
+        for (int i = 0; i < n; i++)
+            buffer.put(i < Long.BYTES ? (byte) (magnitude >>> (i * 8)) : 0);
+    }
+    
     public ETFWriter writeBigNumber(BigInteger num) {
-        if ((int) Math.ceil(num.bitLength() / 8) + 1 > 256) //Equivalent to Math.ceil(log256(num)) + 1)
+        if (digitCount(num) > 255)
 			writeLargeBig(num);
         else
             writeSmallBig(num);
@@ -433,7 +1575,7 @@ public class ETFWriter {
     }
     
     public ETFWriter writeBigNumber(long num, byte sign) {
-        if ((int) Math.ceil(Math.log(num) / Math.log(256)) + 1 > 256) //Equivalent to Math.ceil(log256(num)) + 1)
+        if (digitCount(num) > 255)
 			writeLargeBig(num, sign);
 		else
 			writeSmallBig(num, sign);
@@ -441,7 +1583,33 @@ public class ETFWriter {
     }
     
     public ETFWriter writeBigNumber(long num) {
-        return writeBigNumber(num, (byte) 1); //TODO Maybe we shouldn't assume unsigned
+        return writeBigNumber(num, num < 0 ? (byte) -1 : (byte) 1);
+    }
+    
+    /**
+     * This writes a long using the smallest encoding which can hold it, like erlang does.
+     *
+     * @param num The long.
+     * @return The current writer instance.
+     */
+    public ETFWriter writeLong(long num) {
+        if (num == (int) num)
+            return writeInt((int) num);
+        else
+            return writeBigNumber(num);
+    }
+    
+    /**
+     * This writes an integer using the smallest encoding which can hold it, like erlang does.
+     *
+     * @param num The integer.
+     * @return The current writer instance.
+     */
+    public ETFWriter writeInteger(BigInteger num) {
+        if (num.bitLength() < Integer.SIZE)
+            return writeInt(num.intValue());
+        else
+            return writeBigNumber(num);
     }
     
     public ETFWriter writeOldReference(Reference reference) {
@@ -487,64 +1655,129 @@ public class ETFWriter {
      * @throws com.austinv11.etf.util.ETFException When the object isn't supported.
      */
     public ETFWriter write(Object o) {
+        element();
+        if (messageKind == null && o != null)
+            messageKind = o.getClass();
+        
+        int base = depth;
+        writeValue(o);
+        drain(base);
+        return this;
+    }
+    
+    /**
+     * This calculates exactly how many bytes {@link #write(Object)} would add for an object, without encoding it.
+     * This does not include the version byte or any compression.
+     *
+     * @param o The object.
+     * @return The encoded size in bytes.
+     *
+     * @throws ETFException When the object cannot be written by this writer.
+     */
+    public long sizeOf(Object o) {
+        return new TermSizer(loqui, maxDepth).sizeOf(o);
+    }
+
+    /**
+     * This makes sure the writer can hold at least the given number of additional bytes without growing, this is
+     * meant to be used with {@link #sizeOf(Object)} so a message's buffer is only allocated once.
+     *
+     * @param bytes The number of bytes about to be written.
+     * @return The current writer instance.
+     */
+    public ETFWriter reserve(long bytes) {
+        if (bytes > Integer.MAX_VALUE)
+            throw new ETFException("Cannot reserve " + bytes + " bytes!");
+
+        if (streaming || buffer.remaining() >= bytes) //Streaming writers flush instead of growing
+            return this;
+        
+        if (sealed != null)
+            throw new ETFException(sealed);
+        
+        int required = buffer.position() + (int) bytes;
+        if (required < 0) //Overflowed
+            throw new ETFException("Term is too large to write!");
+        
+        resize(required); //Sized exactly rather than doubled since the caller knows what's coming
+        return this;
+    }
+
+    //Writes scalars directly, containers only have their headers written and are pushed onto the stack
+    private void writeValue(Object o) {
         if (o == null) {
             writeNil();
-            return this;
+            return;
         } else if (o instanceof Number) {
             if (o instanceof BigInteger) {
-                writeBigNumber((BigInteger) o);
-                return this;
+                writeInteger((BigInteger) o);
+                return;
             } else if (o instanceof Short || o instanceof Byte || o instanceof Integer) {
                 writeInt(((Number) o).intValue());
-                return this;
+                return;
             } else if (o instanceof Long) {
-                writeBigNumber((long) o);
-                return this;
+                writeLong((long) o);
+                return;
             } else if (o instanceof Float || o instanceof Double) {
                 writeFloat(((Number) o).doubleValue());
-                return this;
+                return;
             }
         } else if (o instanceof Boolean) {
             writeBoolean((Boolean) o);
-            return this;
+            return;
         } else if (o instanceof Character) {
-            writeAtom(o.toString());
-            return this;
+            writeAtom(o.toString(), false);
+            return;
         } else if (o instanceof ErlangObject) {
             if (o instanceof DistributionHeader) {
                 //TODO
-                return this;
+                return;
             } else if (o instanceof ErlangList) {
-                writeList((ErlangList) o);
-                return this;
+                pushList((ErlangList) o);
+                return;
             } else if (o instanceof ErlangMap) {
-                writeMap((ErlangMap) o);
-                return this;
+                pushMap((ErlangMap) o);
+                return;
             } else if (o instanceof Fun) {
                 //TODO
-                return this;
+                return;
             } else if (o instanceof PID) {
                 //TODO
-                return this;
+                return;
             } else if (o instanceof Port) {
                 //TODO
-                return this;
+                return;
             } else if (o instanceof Reference) {
                 //TODO
-                return this;
+                return;
             } else if (o instanceof Tuple) {
-                writeTuple((Tuple) o);
-                return this;
+                pushTuple((Tuple) o);
+                return;
+            } else if (o instanceof RawTerm) {
+                writeRawTerm((RawTerm) o);
+                return;
             }
+        } else if (o instanceof Versioned && encodingCache != null && o != uncached) {
+            writeVersioned((Versioned) o);
+            return;
         } else if (o instanceof Map) {
-            writeMap((Map) o);
-            return this;
+            pushMap((Map) o);
+            return;
         } else if (o instanceof Collection) {
             if (o instanceof List)
-                writeList((List) o);
+                pushList((List) o);
             else
-                writeTuple((Collection) o);
-            return this;
+                pushTuple((Collection) o);
+            return;
+        } else if (o instanceof Iterator) {
+            pushList((Iterator<?>) o);
+            return;
+        } else if (o instanceof Stream) {
+            pushList(((Stream<?>) o).iterator());
+            return;
+        } else if (o instanceof ByteBuffer) {
+            writeBinary((ByteBuffer) o);
+            return;
         } else if (o.getClass().isArray()) {
             if (o instanceof byte[] || o instanceof Byte[]) {
                 if (o instanceof Byte[]) {
@@ -554,7 +1787,7 @@ public class ETFWriter {
                     o = newArray;
                 }
                 writeBinary((byte[]) o);
-                return this;
+                return;
             } else if (o instanceof char[] || o instanceof Character[]) {
                 if (o instanceof Character[]) {
                     char[] newArray = new char[((Character[]) o).length];
@@ -562,88 +1795,445 @@ public class ETFWriter {
                         newArray[i] = ((Character[]) o)[i];
                     o = newArray;
                 }
-                writeBinary(new String((char[]) o)); //TODO should we optimize for other types?
-                return this;
+                writeBinary(CharBuffer.wrap((char[]) o), StandardCharsets.UTF_8);
+                return;
+            } else if (o instanceof boolean[]) {
+                writeList((boolean[]) o);
+                return;
+            } else if (o instanceof short[]) {
+                writeList((short[]) o);
+                return;
+            } else if (o instanceof int[]) {
+                writeList((int[]) o);
+                return;
+            } else if (o instanceof long[]) {
+                writeList((long[]) o);
+                return;
+            } else if (o instanceof float[]) {
+                writeList((float[]) o);
+                return;
+            } else if (o instanceof double[]) {
+                writeList((double[]) o);
+                return;
             } else {
-                if (o instanceof boolean[]) {
-                    Boolean[] newArray = new Boolean[((boolean[]) o).length];
-                    for (int i = 0; i < newArray.length; i++)
-                        newArray[i] = ((boolean[]) o)[i];
-                    o = newArray;
-                } else if (o instanceof short[]) {
-                    Short[] newArray = new Short[((short[]) o).length];
-                    for (int i = 0; i < newArray.length; i++)
-                        newArray[i] = ((short[]) o)[i];
-                    o = newArray;
-                } else if (o instanceof int[]) {
-                    Integer[] newArray = new Integer[((int[]) o).length];
-                    for (int i = 0; i < newArray.length; i++)
-                        newArray[i] = ((int[]) o)[i];
-                    o = newArray;
-                } else if (o instanceof long[]) {
-                    Long[] newArray = new Long[((long[]) o).length];
-                    for (int i = 0; i < newArray.length; i++)
-                        newArray[i] = ((long[]) o)[i];
-                    o = newArray;
-                } else if (o instanceof float[]) {
-                    Float[] newArray = new Float[((float[]) o).length];
-                    for (int i = 0; i < newArray.length; i++)
-                        newArray[i] = ((float[]) o)[i];
-                    o = newArray;
-                } else if (o instanceof double[]) {
-                    Double[] newArray = new Double[((double[]) o).length];
-                    for (int i = 0; i < newArray.length; i++)
-                        newArray[i] = ((double[]) o)[i];
-                    o = newArray;
-                }
-                writeList((Object[]) o); 
-                return this;
+                pushList((Object[]) o);
+                return;
             }
         } else if (o instanceof String) {
-            if (!loqui || o.equals("true") || o.equals("false") || o.equals("nil"))
-                writeAtom((String) o); //TODO should we optimize for other types?
-            else
-                writeBinary((String) o);
-            return this;
+            writeString((String) o);
+            return;
         } else if (o instanceof Enum) {
             writeAtom(((Enum) o).name());
-            return this;
+            return;
+        } else if (o instanceof ETFTemplate.Slot) {
+            writeSlot((ETFTemplate.Slot) o);
+            return;
         } else {
-            writeMap(o);
-            return this;
+            pushMap(o);
+            return;
         }
         
         throw new ETFException("Unknown object type "+o.getClass());
     }
 
     /**
-     * This gets the current data in a byte array.
+     * This sets what kind of message is being written, compression is skipped for kinds of messages which have been
+     * observed to compress poorly. This defaults to the class of the first term passed to {@link #write(Object)}.
+     *
+     * @param kind The message kind, compared with {@link Object#equals(Object)}.
+     * @return The current writer instance (for chaining).
+     *
+     * @see CompressionStats
+     */
+    public ETFWriter setMessageKind(Object kind) {
+        this.messageKind = kind;
+        return this;
+    }
+    
+    /**
+     * This gets the current data in a byte array. If compression is enabled the message is compressed the first time
+     * its data is retrieved, after which the writer can't be written to anymore.
      *
      * @return The byte array representing this data.
+     *
+     * @throws com.austinv11.etf.util.ETFException When the writer is streaming.
      */
     public byte[] toBytes() {
-        return Arrays.copyOfRange(data, 0, offset);
+        finish();
+        return copy(start);
+    }
+    
+    /**
+     * This gets the written term so that it can be embedded in other messages without being encoded again. This is
+     * meant for partial writers which have written a single term.
+     *
+     * @return The encoded term, without the version byte.
+     *
+     * @throws com.austinv11.etf.util.ETFException When the writer is streaming or its data has been compressed.
+     */
+    public RawTerm toRawTerm() {
+        if (streaming)
+            throw new ETFException("Streaming writers don't hold their data, use flush() instead!");
+        if (buffer == EMPTY)
+            throw new ETFException(sealed);
+        
+        int from = includeDistributionHeader ? start : start + 1;
+        if (buffer.position() > from && buffer.get(from) == HEADER)
+            throw new ETFException("Compressed data can't be embedded in other messages!");
+        return new RawTerm(copy(from));
+    }
+    
+    //Copies the data (including referenced binaries) from a position in the buffer
+    private byte[] copy(int from) {
+        if (segments != null) {
+            byte[] bytes = new byte[(int) (buffer.position() + referencedBytes - from)];
+            int offset = 0;
+            int skip = from - start; //The segments start at the start of the message
+            for (ByteBuffer segment : segmentViews()) {
+                int skipped = Math.min(skip, segment.remaining());
+                segment.position(segment.position() + skipped);
+                skip -= skipped;
+                int length = segment.remaining();
+                segment.get(bytes, offset, length);
+                offset += length;
+            }
+            return bytes;
+        }
+        
+        if (buffer.hasArray())
+            return Arrays.copyOfRange(buffer.array(), buffer.arrayOffset() + from, buffer.arrayOffset() + buffer.position());
+        
+        byte[] bytes = new byte[buffer.position() - from];
+        ByteBuffer data = buffer.duplicate();
+        data.flip().position(from);
+        data.get(bytes);
+        return bytes;
     }
     
     /**
-     * Gives access to the direct buffer in the writer.
+     * Gives access to the direct buffer in the writer without copying it. For pooled writers the buffer itself is
+     * handed over (flipped, ready to be read) and the writer can't be written to anymore. Otherwise this is a view of
+     * the writer's memory, starting where the message starts, which is only valid until the writer is written to
+     * again.
      * 
      * @return The underlying buffer.
+     *
+     * @throws com.austinv11.etf.util.ETFException When the writer is streaming.
      */
     public ByteBuffer toBuffer() {
-        return ByteBuffer.wrap(toBytes());
+        finish();
+        inline();
+        
+        if (pool != null) { //Pooled buffers always start with the message
+            ByteBuffer data = buffer;
+            data.flip();
+            buffer = EMPTY;
+            sealed = "This writer's buffer has already been handed off!";
+            return data;
+        }
+        
+        ByteBuffer data = buffer.duplicate();
+        data.flip().position(start); //Anything before the start was already in the caller's buffer
+        return data.slice();
+    }
+    
+    /**
+     * This gets the message as a sequence of buffers, like erlang's term_to_iovec. Binaries at least as large as the
+     * segment threshold (see {@link ETFConfig#setSegmentThreshold(int)}) are their own segments which reference the
+     * original data, everything else is a view of the writer's buffer. The segments are only valid until the writer is
+     * written to again, pooled writers must be {@link #release() released} once they've been sent.
+     *
+     * @return The segments, in order.
+     *
+     * @throws com.austinv11.etf.util.ETFException When the writer is streaming.
+     */
+    public ByteBuffer[] toSegments() {
+        finish();
+        return segmentViews();
+    }
+    
+    private ByteBuffer[] segmentViews() {
+        if (segments == null)
+            return new ByteBuffer[]{view(start, buffer.position())};
+        
+        ByteBuffer[] views = new ByteBuffer[segments.size() * 2 + 1];
+        int position = start;
+        int i = 0;
+        for (Segment segment : segments) {
+            views[i++] = view(position, segment.position);
+            views[i++] = segment.data.duplicate();
+            position = segment.position;
+        }
+        views[i] = view(position, buffer.position());
+        return views;
+    }
+    
+    private ByteBuffer view(int from, int to) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(to).position(from);
+        return view;
+    }
+    
+    //Copies referenced binaries into the buffer so that the message is contiguous
+    private void inline() {
+        if (segments == null)
+            return;
+        
+        int length = (int) (buffer.position() + referencedBytes);
+        ByteBuffer inlined;
+        if (pool != null)
+            inlined = pool.acquire(length);
+        else if (buffer.isDirect())
+            inlined = ByteBuffer.allocateDirect(length);
+        else
+            inlined = ByteBuffer.allocate(Math.max(length, buffer.capacity()));
+        
+        inlined.position(start); //Offsets are kept, so the message still begins at the start
+        for (ByteBuffer segment : segmentViews())
+            inlined.put(segment);
+        
+        if (pool != null)
+            pool.release(buffer);
+        buffer = inlined;
+        segments = null;
+        referencedBytes = 0;
+    }
+    
+    /**
+     * This writes the encoded message to a channel and, for pooled writers, releases the buffer back to its pool.
+     * Referenced binaries are sent without being copied, with a single gathering write if the channel supports it.
+     *
+     * @param channel The channel to send the message to.
+     */
+    public void sendTo(WritableByteChannel channel) {
+        if (segments != null && !compress) {
+            try {
+                writeFully(channel, toSegments());
+            } finally {
+                release();
+            }
+            return;
+        }
+        
+        ByteBuffer data = toBuffer();
+        try {
+            while (data.hasRemaining())
+                channel.write(data);
+        } catch (IOException e) {
+            throw new ETFException(e);
+        } finally {
+            if (pool != null)
+                pool.release(data);
+        }
+    }
+    
+    //Writes every buffer to a channel, with gathering writes if the channel supports them
+    static void writeFully(WritableByteChannel channel, ByteBuffer[] data) {
+        try {
+            if (channel instanceof GatheringByteChannel) {
+                GatheringByteChannel gathering = (GatheringByteChannel) channel;
+                int first = 0;
+                while (first < data.length) {
+                    gathering.write(data, first, data.length - first);
+                    while (first < data.length && !data[first].hasRemaining())
+                        first++;
+                }
+            } else {
+                for (ByteBuffer segment : data)
+                    while (segment.hasRemaining())
+                        channel.write(segment);
+            }
+        } catch (IOException e) {
+            throw new ETFException(e);
+        }
+    }
+    
+    /**
+     * This gives a pooled writer's buffer back to its pool without sending it, e.g. when encoding failed. This does
+     * nothing for other writers or if the buffer was already handed off.
+     */
+    public void release() {
+        if (pool != null && buffer != EMPTY) {
+            pool.release(buffer);
+            buffer = EMPTY;
+            lastElement = -1;
+            sealed = "This writer's buffer has already been handed off!";
+        }
+    }
+    
+    //Creates a partial writer for ETFBatchWriter, which writes the version byte (if any) for each message itself
+    static ETFWriter batch(ETFConfig config, BufferPool pool) {
+        ETFWriter writer = new ETFWriter(config, true, null, null,
+                pool != null ? pool.acquire(256) : ByteBuffer.allocate(256), pool);
+        writer.buffer.position(writer.start);
+        return writer;
+    }
+    
+    //The size of everything written so far, including referenced binaries
+    int size() {
+        return (int) (buffer.position() + referencedBytes - start);
+    }
+    
+    //Starts a batched message, returning where it starts in the buffer. The length prefix is patched by patchLength().
+    int beginMessage(boolean lengthPrefixed, boolean versioned) {
+        if (buffer == EMPTY)
+            throw new ETFException(sealed);
+        
+        ensureCapacity(5);
+        int position = buffer.position();
+        if (lengthPrefixed)
+            buffer.putInt(0);
+        if (versioned)
+            buffer.put(version);
+        return position;
+    }
+    
+    void patchLength(int position, int length) {
+        buffer.putInt(position, length);
+    }
+    
+    //Discards everything written after a position in the buffer
+    void truncate(int position) {
+        buffer.position(position);
+        lastElement = -1;
+        if (segments != null) {
+            while (!segments.isEmpty() && segments.get(segments.size() - 1).position > position)
+                referencedBytes -= segments.remove(segments.size() - 1).data.remaining();
+            if (segments.isEmpty())
+                segments = null;
+        }
+        slots = null;
+        messageKind = null;
+    }
+    
+    //Clears the writer so it can be reused, keeping its buffer
+    void clear() {
+        truncate(start);
+    }
+    
+    //A view of the data which is only valid until the writer is written to again, referenced binaries are inlined
+    ByteBuffer view() {
+        finish();
+        inline();
+        ByteBuffer data = buffer.duplicate();
+        data.flip().position(start);
+        return data;
+    }
+    
+    private void finish() {
+        if (streaming)
+            throw new ETFException("Streaming writers don't hold their data, use flush() instead!");
+        if (buffer == EMPTY)
+            throw new ETFException(sealed);
+        if (pinned > 0)
+            throw new ETFException("A list or map hasn't been ended yet!");
+        
+        if (compress && sealed == null) {
+            inline(); //The whole message needs to be in one place to be compressed
+            compressData();
+            sealed = "This writer's data has already been compressed!";
+            buffer.limit(buffer.position()); //Any further writes need to grow the buffer, which fails once sealed
+        }
+    }
+    
+    //Replaces the data after the version byte with its compressed form, if that is worthwhile
+    private void compressData() {
+        int length = buffer.position() - start - 1;
+        Object kind = messageKind != null ? messageKind : Object.class;
+        if (length < compressionThreshold || !compressionStats.shouldCompress(kind))
+            return;
+        
+        byte[] input;
+        int inputOffset;
+        if (buffer.hasArray()) {
+            input = buffer.array();
+            inputOffset = buffer.arrayOffset() + start + 1;
+        } else {
+            input = new byte[length];
+            ByteBuffer data = buffer.duplicate();
+            data.position(start + 1);
+            data.get(input);
+            inputOffset = 0;
+        }
+        
+        byte[] output = new byte[5 + length]; //Compressing is only worth it if the result is smaller
+        output[0] = HEADER;
+        output[1] = (byte) (length >>> 24);
+        output[2] = (byte) (length >>> 16);
+        output[3] = (byte) (length >>> 8);
+        output[4] = (byte) length;
+        int written = 5;
+        Deflater deflater = DeflaterPool.acquire(compressionLevel);
+        try {
+            if (compressionDictionary != null) //Its id is written in the zlib header
+                deflater.setDictionary(compressionDictionary);
+            deflater.setInput(input, inputOffset, length);
+            deflater.finish();
+            while (!deflater.finished() && written < output.length)
+                written += deflater.deflate(output, written, output.length - written);
+            
+            if (!deflater.finished()) { //Didn't shrink
+                compressionStats.record(kind, length, length);
+                return;
+            }
+        } finally {
+            DeflaterPool.release(deflater);
+        }
+        compressionStats.record(kind, length, written - 5);
+        
+        buffer.position(start + 1); //The compressed data is smaller so it always fits in place
+        buffer.put(output, 0, written);
     }
     
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder("<");
-        for (int i = 0; i < offset; i++) {
-            builder.append(data[i]);
-            if (i+1 != offset)
+        for (int i = 0; i < buffer.position(); i++) {
+            builder.append(buffer.get(i));
+            if (i+1 != buffer.position())
                 builder.append(", ");
         }
         builder.append(">");
         
         return builder.toString();
     }
+    
+    //Internal use only, a binary which is referenced at a position in the buffer
+    private static class Segment {
+        final int position;
+        final ByteBuffer data;
+        
+        Segment(int position, ByteBuffer data) {
+            this.position = position;
+            this.data = data;
+        }
+    }
+    
+    //Internal use only, a partially written tuple, list or map
+    private static class Frame {
+        Iterator<?> iterator;
+        Object[] array;
+        int length;
+        int index;
+        boolean map;
+        boolean list;
+        Object value;
+        boolean hasValue;
+        int header = -1; //Where the header is when the length needs to be patched
+        Object object; //The object whose properties are being written
+        ObjectLayout layout;
+        
+        void clear() {
+            iterator = null;
+            array = null;
+            index = 0;
+            map = false;
+            list = false;
+            value = null;
+            hasValue = false;
+            header = -1;
+            object = null;
+            layout = null;
+        }
+    }
 }
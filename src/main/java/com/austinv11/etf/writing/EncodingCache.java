@@ -0,0 +1,136 @@
+package com.austinv11.etf.writing;
+
+import com.austinv11.etf.erlang.RawTerm;
+import com.austinv11.etf.util.Versioned;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This represents a thread-safe cache of the encoded forms of {@link Versioned} objects, which {@link ETFWriter}s copy
+ * instead of encoding the objects again for as long as their version stamps don't change.
+ *
+ * Objects are held weakly (and compared by identity) so they are dropped once they're no longer used. Encodings are
+ * cached as they are written until the cache is full, after which new objects are encoded on every write.
+ */
+public class EncodingCache {
+
+    /**
+     * A shared cache holding up to 16MiB of encoded objects, this is used by default.
+     */
+    public static final EncodingCache DEFAULT = new EncodingCache(16 * 1024 * 1024);
+
+    private final long maxBytes;
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+    private long size = 0; //Guarded by this
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxBytes The maximum total size of the cached encodings.
+     */
+    public EncodingCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * This gets the number of objects which are currently cached.
+     *
+     * @return The number of objects.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * This gets the total size of the cached encodings.
+     *
+     * @return The size in bytes.
+     */
+    public synchronized long getBytes() {
+        return size;
+    }
+
+    /**
+     * This removes every cached encoding.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    //Gets an object's encoding, if it's cached for the same version and writer mode
+    RawTerm get(Versioned o, long version, int mode) {
+        Entry entry = entries.get(new Key(o, null));
+        return entry != null && entry.version == version && entry.mode == mode ? entry.term : null;
+    }
+
+    //Caches an object's encoding if there is room, replacing any encoding of an older version
+    synchronized void put(Versioned o, long version, int mode, RawTerm term) {
+        expunge();
+        Key key = new Key(o, collected);
+        Entry old = entries.get(key);
+        long freed = old == null ? 0 : old.term.size();
+        if (size - freed + term.size() > maxBytes) {
+            if (old != null) { //Stale either way
+                entries.remove(key);
+                size -= freed;
+            }
+            return;
+        }
+
+        entries.put(key, new Entry(version, mode, term));
+        size += term.size() - freed;
+    }
+
+    //Removes the encodings of objects which have been garbage collected
+    private void expunge() {
+        Reference<?> reference;
+        while ((reference = collected.poll()) != null) {
+            Entry entry = entries.remove(reference);
+            if (entry != null)
+                size -= entry.term.size();
+        }
+    }
+
+    private static class Key extends WeakReference<Object> {
+
+        private final int hash;
+
+        Key(Object referent, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other)
+                return true;
+            if (!(other instanceof Key))
+                return false;
+            Object referent = get();
+            return referent != null && referent == ((Key) other).get();
+        }
+    }
+
+    private static class Entry {
+        final long version;
+        final int mode;
+        final RawTerm term;
+
+        Entry(long version, int mode, RawTerm term) {
+            this.version = version;
+            this.mode = mode;
+            this.term = term;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.austinv11.etf.writing;
+
+import com.austinv11.etf.util.ReflectionUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.austinv11.etf.common.TermTypes.BINARY_EXT;
+
+/**
+ * Internal class holding what writers need to write a class's objects as maps: its properties (once each) and their
+ * names already encoded as keys, the way {@link ETFWriter#write(Object)} would encode them as strings.
+ */
+class ObjectLayout {
+
+    private static final ClassValue<ObjectLayout> LAYOUTS = new ClassValue<ObjectLayout>() {
+        @Override
+        protected ObjectLayout computeValue(Class<?> type) {
+            return new ObjectLayout(type);
+        }
+    };
+
+    final ReflectionUtils.PropertyMetadata[] properties;
+    final byte[][] keys; //Atoms
+    final byte[][] loquiKeys; //Binaries, except for the names loqui writes as atoms
+
+    private ObjectLayout(Class<?> type) {
+        Map<String, ReflectionUtils.PropertyMetadata> unique = new LinkedHashMap<>();
+        for (ReflectionUtils.PropertyMetadata property : ReflectionUtils.getProperties(type, type))
+            unique.putIfAbsent(property.getName(), property); //Public fields are found twice
+        properties = unique.values().toArray(new ReflectionUtils.PropertyMetadata[0]);
+
+        keys = new byte[properties.length][];
+        loquiKeys = new byte[properties.length][];
+        for (int i = 0; i < properties.length; i++) {
+            String name = properties[i].getName();
+            keys[i] = AtomCache.encode(name);
+            if (name.equals("true") || name.equals("false") || name.equals("nil"))
+                loquiKeys[i] = keys[i];
+            else
+                loquiKeys[i] = encodeBinary(name);
+        }
+    }
+
+    static ObjectLayout of(Class<?> type) {
+        return LAYOUTS.get(type);
+    }
+
+    private static byte[] encodeBinary(String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = new byte[5 + bytes.length];
+        encoded[0] = BINARY_EXT;
+        encoded[1] = (byte) (bytes.length >>> 24);
+        encoded[2] = (byte) (bytes.length >>> 16);
+        encoded[3] = (byte) (bytes.length >>> 8);
+        encoded[4] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, encoded, 5, bytes.length);
+        return encoded;
+    }
+}
@@ -0,0 +1,224 @@
+package com.austinv11.etf.writing;
+
+import com.austinv11.etf.erlang.*;
+import com.austinv11.etf.util.ETFException;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Internal class which computes how many bytes {@link ETFWriter#write(Object)} would produce for a term, without
+ * encoding it. This walks terms with an explicit stack, the same way the writer does.
+ *
+ * NOTE: This must make the same encoding choices as {@link ETFWriter}, so any change to how the writer encodes a type
+ * needs to be mirrored here.
+ */
+class TermSizer {
+
+    private final boolean loqui;
+    private final int maxDepth;
+    private final Deque<Iterator<?>> stack = new ArrayDeque<>();
+    private long size = 0;
+
+    TermSizer(boolean loqui, int maxDepth) {
+        this.loqui = loqui;
+        this.maxDepth = maxDepth;
+    }
+
+    long sizeOf(Object o) {
+        size = 0;
+        stack.clear();
+        add(o);
+        while (!stack.isEmpty()) {
+            Iterator<?> iterator = stack.peek();
+            if (iterator.hasNext())
+                add(iterator.next());
+            else
+                stack.pop();
+        }
+        return size;
+    }
+
+    private void push(Iterator<?> iterator) {
+        if (stack.size() >= maxDepth)
+            throw new ETFException("Maximum nesting depth of " + maxDepth + " exceeded!");
+        stack.push(iterator);
+    }
+
+    private void add(Object o) {
+        if (o == null) {
+            size += nil();
+            return;
+        } else if (o instanceof Number) {
+            if (o instanceof BigInteger) {
+                size += integer((BigInteger) o);
+                return;
+            } else if (o instanceof Short || o instanceof Byte || o instanceof Integer) {
+                size += integer(((Number) o).intValue());
+                return;
+            } else if (o instanceof Long) {
+                size += integer((long) o);
+                return;
+            } else if (o instanceof Float || o instanceof Double) {
+                size += 9;
+                return;
+            }
+        } else if (o instanceof Boolean) {
+            if (!loqui)
+                throw new ETFException("Loqui booleans not supported!");
+            size += atom((Boolean) o ? "true" : "false");
+            return;
+        } else if (o instanceof Character) {
+            size += atom(o.toString());
+            return;
+        } else if (o instanceof ErlangObject) {
+            if (o instanceof ErlangList) {
+                list((ErlangList) o);
+                return;
+            } else if (o instanceof ErlangMap) {
+                map((ErlangMap) o);
+                return;
+            } else if (o instanceof Tuple) {
+                tuple((Tuple) o);
+                return;
+            } else if (o instanceof RawTerm) {
+                size += ((RawTerm) o).size();
+                return;
+            } else if (o instanceof DistributionHeader || o instanceof Fun || o instanceof PID || o instanceof Port
+                    || o instanceof Reference) {
+                return; //TODO these aren't written yet
+            }
+        } else if (o instanceof Map) {
+            map((Map<?, ?>) o);
+            return;
+        } else if (o instanceof Collection) {
+            if (o instanceof List)
+                list((List<?>) o);
+            else
+                tuple((Collection<?>) o);
+            return;
+        } else if (o instanceof Iterator || o instanceof Stream) {
+            throw new ETFException("Iterators and streams can't be sized without consuming them!");
+        } else if (o instanceof ByteBuffer) {
+            size += 5 + ((ByteBuffer) o).remaining();
+            return;
+        } else if (o.getClass().isArray()) {
+            if (o instanceof byte[]) {
+                size += 5 + ((byte[]) o).length;
+            } else if (o instanceof Byte[]) {
+                size += 5 + ((Byte[]) o).length;
+            } else if (o instanceof char[]) {
+                size += 5 + ETFWriter.utf8Length(CharBuffer.wrap((char[]) o));
+            } else if (o instanceof Character[]) {
+                char[] chars = new char[((Character[]) o).length];
+                for (int i = 0; i < chars.length; i++)
+                    chars[i] = ((Character[]) o)[i];
+                size += 5 + ETFWriter.utf8Length(CharBuffer.wrap(chars));
+            } else if (o instanceof boolean[]) {
+                boolean[] array = (boolean[]) o;
+                if (!loqui && array.length > 0)
+                    throw new ETFException("Loqui booleans not supported!");
+                size += 6;
+                for (boolean bool : array)
+                    size += atom(bool ? "true" : "false");
+            } else if (o instanceof short[]) {
+                if (ETFWriter.isByteString((short[]) o)) {
+                    size += 3 + ((short[]) o).length;
+                } else {
+                    size += 6;
+                    for (short num : (short[]) o)
+                        size += integer(num);
+                }
+            } else if (o instanceof int[]) {
+                if (ETFWriter.isByteString((int[]) o)) {
+                    size += 3 + ((int[]) o).length;
+                } else {
+                    size += 6;
+                    for (int num : (int[]) o)
+                        size += integer(num);
+                }
+            } else if (o instanceof long[]) {
+                size += 6;
+                for (long num : (long[]) o)
+                    size += integer(num);
+            } else if (o instanceof float[]) {
+                size += 6 + 9L * ((float[]) o).length;
+            } else if (o instanceof double[]) {
+                size += 6 + 9L * ((double[]) o).length;
+            } else {
+                list(Arrays.asList((Object[]) o));
+            }
+            return;
+        } else if (o instanceof String) {
+            if (!loqui || o.equals("true") || o.equals("false") || o.equals("nil"))
+                size += atom((String) o);
+            else
+                size += 5 + ETFWriter.utf8Length((String) o);
+            return;
+        } else if (o instanceof Enum) {
+            size += atom(((Enum<?>) o).name());
+            return;
+        } else if (o instanceof ETFTemplate.Slot) {
+            size += ((ETFTemplate.Slot) o).size();
+            return;
+        } else {
+            pojo(o);
+            return;
+        }
+
+        throw new ETFException("Unknown object type "+o.getClass());
+    }
+
+    private int nil() {
+        return loqui ? atom("nil") : 1;
+    }
+
+    private static int atom(String atom) {
+        return (atom.length() > 255 ? 3 : 2) + ETFWriter.singleByteLength(atom);
+    }
+
+    private static int integer(int num) {
+        return (num & ~0xFF) == 0 ? 2 : 5;
+    }
+
+    private static int integer(long num) {
+        return num == (int) num ? integer((int) num) : 3 + ETFWriter.digitCount(Math.abs(num));
+    }
+
+    private static int integer(BigInteger num) {
+        if (num.bitLength() < Integer.SIZE)
+            return integer(num.intValue());
+
+        int digits = ETFWriter.digitCount(num);
+        return (digits > 255 ? 6 : 3) + digits;
+    }
+
+    private void list(Collection<?> list) {
+        size += 6; //Header and nil tail
+        push(list.iterator());
+    }
+
+    private void tuple(Collection<?> tuple) {
+        size += tuple.size() > 255 ? 5 : 2;
+        push(tuple.iterator());
+    }
+
+    private void map(Map<?, ?> map) {
+        size += 5;
+        push(map.entrySet().stream().flatMap(e -> Arrays.asList(e.getKey(), e.getValue()).stream()).iterator());
+    }
+
+    private void pojo(Object o) {
+        ObjectLayout layout = ObjectLayout.of(o.getClass());
+        size += 5;
+        List<Object> values = new ArrayList<>(layout.properties.length);
+        for (int i = 0; i < layout.properties.length; i++) {
+            size += (loqui ? layout.loquiKeys : layout.keys)[i].length;
+            values.add(layout.properties[i].getValue(o));
+        }
+        push(values.iterator());
+    }
+}
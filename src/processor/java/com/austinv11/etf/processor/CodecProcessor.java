@@ -0,0 +1,437 @@
+package com.austinv11.etf.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This generates a codec (com.austinv11.etf.util.Codec) for every class annotated with
+ * com.austinv11.etf.util.GenerateCodec, so that com.austinv11.etf.util.Mapper can encode and decode it without
+ * reflection.
+ *
+ * Properties are found the same way the mapper finds them with reflection, the class's non-static and non-transient
+ * fields followed by the public ones it inherits. They are read and written through their getters and setters when
+ * they have them (by name or with GetterMethod/SetterMethod), otherwise through the fields directly. Primitives,
+ * their boxes, strings and enums are written and read with the writer's and parser's own methods, anything else is
+ * handed back to the mapper.
+ */
+@SupportedAnnotationTypes(CodecProcessor.GENERATE_CODEC)
+public class CodecProcessor extends AbstractProcessor {
+
+    static final String GENERATE_CODEC = "com.austinv11.etf.util.GenerateCodec";
+    static final String GETTER_METHOD = "com.austinv11.etf.util.GetterMethod";
+    static final String SETTER_METHOD = "com.austinv11.etf.util.SetterMethod";
+    static final String SUFFIX = "_ETFCodec";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.CLASS) {
+                    error(element, "Only classes can have codecs generated!");
+                    continue;
+                }
+
+                TypeElement type = (TypeElement) element;
+                if (check(type))
+                    generate(type, findProperties(type));
+            }
+        }
+        return true;
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    //Makes sure the generated codec, which lives in the class's package, can create the class
+    private boolean check(TypeElement type) {
+        if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+            error(type, "Codecs can't be generated for abstract classes!");
+            return false;
+        }
+        if (!type.getTypeParameters().isEmpty()) {
+            error(type, "Codecs can't be generated for generic classes!");
+            return false;
+        }
+        for (Element enclosing = type; enclosing.getKind() != ElementKind.PACKAGE; enclosing = enclosing.getEnclosingElement()) {
+            if (enclosing.getModifiers().contains(Modifier.PRIVATE)) {
+                error(type, "Codecs can't be generated for private classes!");
+                return false;
+            }
+            if (enclosing instanceof TypeElement && ((TypeElement) enclosing).getNestingKind() != NestingKind.TOP_LEVEL
+                    && !enclosing.getModifiers().contains(Modifier.STATIC)) {
+                error(type, "Codecs can't be generated for inner classes, they must be static!");
+                return false;
+            }
+        }
+
+        List<ExecutableElement> constructors = ElementFilter.constructorsIn(type.getEnclosedElements());
+        for (ExecutableElement constructor : constructors) {
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE))
+                return true;
+        }
+        error(type, "Codecs can only be generated for classes with a non-private no-arg constructor!");
+        return false;
+    }
+
+    private List<Property> findProperties(TypeElement type) {
+        Map<String, VariableElement> fields = new LinkedHashMap<>(); //The first field with a name wins
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            if (isProperty(field))
+                fields.putIfAbsent(field.getSimpleName().toString(), field);
+        }
+        for (TypeElement superclass = superclassOf(type); superclass != null; superclass = superclassOf(superclass)) {
+            for (VariableElement field : ElementFilter.fieldsIn(superclass.getEnclosedElements())) {
+                if (isProperty(field) && field.getModifiers().contains(Modifier.PUBLIC))
+                    fields.putIfAbsent(field.getSimpleName().toString(), field);
+            }
+        }
+
+        List<ExecutableElement> methods = ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type));
+        List<Property> properties = new ArrayList<>();
+        for (VariableElement field : fields.values())
+            properties.add(new Property(type, field, methods));
+        return properties;
+    }
+
+    private static boolean isProperty(VariableElement field) {
+        return !field.getModifiers().contains(Modifier.STATIC) && !field.getModifiers().contains(Modifier.TRANSIENT);
+    }
+
+    private static TypeElement superclassOf(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED)
+            return null;
+        TypeElement element = (TypeElement) ((DeclaredType) superclass).asElement();
+        return element.getQualifiedName().contentEquals("java.lang.Object") ? null : element;
+    }
+
+    private PackageElement packageOf(Element element) {
+        return processingEnv.getElementUtils().getPackageOf(element);
+    }
+
+    //Whether the generated codec can use a member, it lives in the same package as the class
+    private boolean isAccessible(TypeElement type, Element member) {
+        Set<Modifier> modifiers = member.getModifiers();
+        if (modifiers.contains(Modifier.PUBLIC))
+            return true;
+        return !modifiers.contains(Modifier.PRIVATE) && packageOf(member).equals(packageOf(type));
+    }
+
+    private static String annotationValue(Element element, String annotation) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation)) {
+                for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+                    if (entry.getKey().getSimpleName().contentEquals("value"))
+                        return String.valueOf(entry.getValue().getValue());
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String capitalize(String s) {
+        return s.substring(0, 1).toUpperCase() + s.substring(1);
+    }
+
+    private String typeName(TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    private static String literal(String s) {
+        StringBuilder builder = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\')
+                builder.append('\\').append(c);
+            else if (c < 0x20 || c > 0x7e)
+                builder.append(String.format("\\u%04x", (int) c));
+            else
+                builder.append(c);
+        }
+        return builder.append('"').toString();
+    }
+
+    private void generate(TypeElement type, List<Property> properties) {
+        for (Property property : properties) {
+            if (property.read == null) {
+                error(property.field, "Property " + property.name + " needs a non-private field or getter to generate a codec!");
+                return;
+            }
+            if (property.write == null && !property.field.getModifiers().contains(Modifier.FINAL)) {
+                error(property.field, "Property " + property.name + " needs a non-private field or setter to generate a codec!");
+                return;
+            }
+        }
+
+        String packageName = packageOf(type).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String codecName = binaryName.substring(packageName.isEmpty() ? 0 : packageName.length() + 1)
+                .replace('$', '_') + SUFFIX;
+        String typeName = type.getQualifiedName().toString();
+
+        StringBuilder code = new StringBuilder();
+        if (!packageName.isEmpty())
+            code.append("package ").append(packageName).append(";\n\n");
+        code.append("/**\n * The generated codec of {@link ").append(typeName).append("}.\n */\n");
+        code.append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+        code.append("public final class ").append(codecName)
+                .append(" implements com.austinv11.etf.util.Codec<").append(typeName).append("> {\n\n");
+
+        code.append("    private static final com.austinv11.etf.parsing.KeyMatcher KEYS = new com.austinv11.etf.parsing.KeyMatcher(");
+        for (int i = 0; i < properties.size(); i++)
+            code.append(i == 0 ? "" : ", ").append(literal(properties.get(i).name));
+        code.append(");\n\n");
+
+        code.append("    @Override\n");
+        code.append("    public void encode(com.austinv11.etf.util.Mapper mapper, com.austinv11.etf.writing.ETFWriter writer, ")
+                .append(typeName).append(" value, int depth) {\n");
+        code.append("        writer.writeMapHeader(").append(properties.size()).append(");\n");
+        for (Property property : properties) {
+            code.append("        writer.writeString(").append(literal(property.name)).append(");\n");
+            encode(code, property);
+        }
+        code.append("    }\n\n");
+
+        code.append("    @Override\n");
+        code.append("    public ").append(typeName)
+                .append(" decode(com.austinv11.etf.util.Mapper mapper, com.austinv11.etf.parsing.ETFParser parser, int depth) {\n");
+        code.append("        ").append(typeName).append(" value = new ").append(typeName).append("();\n");
+        code.append("        int size = parser.nextMapHeader();\n");
+        code.append("        int expected = 0;\n");
+        code.append("        for (int i = 0; i < size; i++) {\n");
+        code.append("            int key = parser.nextKey(KEYS, expected);\n");
+        code.append("            if (key >= 0)\n");
+        code.append("                expected = key + 1;\n");
+        code.append("            switch (key) {\n");
+        for (int i = 0; i < properties.size(); i++) {
+            Property property = properties.get(i);
+            if (property.write == null) //Final fields are left as they are
+                continue;
+            code.append("                case ").append(i).append(": //").append(property.name).append("\n");
+            decode(code, property);
+            code.append("                    break;\n");
+        }
+        code.append("                default:\n");
+        code.append("                    parser.skip();\n");
+        code.append("            }\n");
+        code.append("        }\n");
+        code.append("        return value;\n");
+        code.append("    }\n");
+        code.append("}\n");
+
+        try (Writer writer = processingEnv.getFiler()
+                .createSourceFile((packageName.isEmpty() ? "" : packageName + ".") + codecName, type).openWriter()) {
+            writer.write(code.toString());
+        } catch (IOException e) {
+            error(type, "Unable to write the codec: " + e.getMessage());
+        }
+    }
+
+    private void encode(StringBuilder code, Property property) {
+        String value = property.read;
+        TypeMirror type = property.readType;
+        if (primitiveWriter(type.getKind()) != null) {
+            code.append("        writer.").append(primitiveWriter(type.getKind())).append("(").append(value).append(");\n");
+            return;
+        } else if (type.getKind() == TypeKind.CHAR) { //Chars are written as atoms
+            code.append("        writer.writeAtom(String.valueOf(").append(value).append("));\n");
+            return;
+        }
+
+        String local = "_" + property.name;
+        String write;
+        TypeKind unboxed = unboxedKind(type);
+        if (unboxed == TypeKind.CHAR) {
+            write = "writer.writeAtom(String.valueOf(" + local + "))";
+        } else if (unboxed != null) {
+            write = "writer." + primitiveWriter(unboxed) + "(" + local + ")";
+        } else if (isType(type, "java.lang.String")) {
+            write = "writer.writeString(" + local + ")";
+        } else if (isEnum(type)) {
+            write = "writer.writeAtom(" + local + ".name())";
+        } else { //The mapper handles null
+            code.append("        mapper.writeValue(writer, ").append(value).append(", depth + 1);\n");
+            return;
+        }
+
+        code.append("        ").append(typeName(type)).append(" ").append(local).append(" = ").append(value).append(";\n");
+        code.append("        if (").append(local).append(" == null)\n");
+        code.append("            writer.writeNil();\n");
+        code.append("        else\n");
+        code.append("            ").append(write).append(";\n");
+    }
+
+    private static String primitiveWriter(TypeKind kind) {
+        switch (kind) {
+            case INT:
+            case SHORT:
+            case BYTE:
+                return "writeInt";
+            case LONG:
+                return "writeLong";
+            case DOUBLE:
+            case FLOAT:
+                return "writeFloat";
+            case BOOLEAN:
+                return "writeBoolean";
+            default:
+                return null;
+        }
+    }
+
+    private void decode(StringBuilder code, Property property) {
+        TypeMirror type = property.writeType;
+        boolean primitive = type.getKind().isPrimitive();
+        TypeKind kind = primitive ? type.getKind() : unboxedKind(type);
+        String read;
+        if (kind != null) {
+            read = primitiveReader(kind);
+        } else if (isType(type, "java.lang.String")) {
+            read = "parser.nextString()";
+        } else if (isEnum(type)) {
+            read = "parser.nextAtom(" + typeName(type) + ".class)";
+        } else { //The mapper handles nil
+            code.append("                    ")
+                    .append(property.assign("(" + typeName(type) + ") mapper.readValue(parser, " + typeName(type) + ".class, depth + 1)"))
+                    .append(";\n");
+            return;
+        }
+
+        code.append("                    if (parser.isNil()) {\n");
+        code.append("                        parser.nextNil();\n");
+        if (!primitive) //Primitives are left as they are, like the mapper does
+            code.append("                        ").append(property.assign("null")).append(";\n");
+        code.append("                    } else {\n");
+        code.append("                        ").append(property.assign(read)).append(";\n");
+        code.append("                    }\n");
+    }
+
+    private static String primitiveReader(TypeKind kind) {
+        switch (kind) {
+            case INT:
+                return "parser.nextInt()";
+            case SHORT:
+                return "(short) parser.nextInt()";
+            case BYTE:
+                return "(byte) parser.nextInt()";
+            case LONG:
+                return "parser.nextLong()";
+            case DOUBLE:
+                return "parser.nextFloat()";
+            case FLOAT:
+                return "(float) parser.nextFloat()";
+            case CHAR: //Written as atoms
+                return "parser.nextString().charAt(0)";
+            default:
+                return "parser.nextBoolean()";
+        }
+    }
+
+    private boolean isType(TypeMirror type, String name) {
+        return type.getKind() == TypeKind.DECLARED
+                && ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().contentEquals(name);
+    }
+
+    private boolean isEnum(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED && ((DeclaredType) type).asElement().getKind() == ElementKind.ENUM;
+    }
+
+    private TypeKind unboxedKind(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED)
+            return null;
+        try {
+            return processingEnv.getTypeUtils().unboxedType(type).getKind();
+        } catch (IllegalArgumentException e) { //Not a box
+            return null;
+        }
+    }
+
+    //A property and how the generated codec reads and writes it
+    private class Property {
+
+        final String name;
+        final VariableElement field;
+        String read; //Null when the property can't be read
+        TypeMirror readType;
+        String setter; //The setter's name, if it has one
+        String write; //Null when the property can't be written
+        TypeMirror writeType;
+
+        Property(TypeElement type, VariableElement field, List<ExecutableElement> methods) {
+            this.field = field;
+            this.name = field.getSimpleName().toString();
+            boolean isFinal = field.getModifiers().contains(Modifier.FINAL);
+            String getterName = "get" + capitalize(name);
+            String setterName = "set" + capitalize(name);
+            ExecutableElement getter = null;
+            ExecutableElement setter = null;
+            for (ExecutableElement method : methods) {
+                if (method.getModifiers().contains(Modifier.STATIC))
+                    continue;
+
+                String methodName = method.getSimpleName().toString();
+                if (getter == null && method.getParameters().isEmpty() && method.getReturnType().getKind() != TypeKind.VOID
+                        && (methodName.equals(getterName) || name.equals(annotationValue(method, GETTER_METHOD)))) {
+                    getter = method;
+                } else if (setter == null && !isFinal && method.getParameters().size() == 1
+                        && ((methodName.equals(setterName)
+                        && processingEnv.getTypeUtils().isSameType(method.getParameters().get(0).asType(), field.asType()))
+                        || name.equals(annotationValue(method, SETTER_METHOD)))) {
+                    setter = method;
+                }
+            }
+
+            if (getter != null && isAccessible(type, getter)) {
+                read = "value." + getter.getSimpleName() + "()";
+                readType = getter.getReturnType();
+            } else if (isAccessible(type, field)) {
+                read = "value." + name;
+                readType = field.asType();
+            }
+
+            if (isFinal)
+                return;
+            if (setter != null && isAccessible(type, setter)) {
+                this.setter = setter.getSimpleName().toString();
+                write = "value." + this.setter;
+                writeType = setter.getParameters().get(0).asType();
+            } else if (isAccessible(type, field)) {
+                write = "value." + name;
+                writeType = field.asType();
+            }
+        }
+
+        String assign(String expression) {
+            return setter != null ? write + "(" + expression + ")" : write + " = " + expression;
+        }
+    }
+}
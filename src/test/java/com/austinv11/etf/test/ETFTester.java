@@ -2,16 +2,33 @@ package com.austinv11.etf.test;
 
 import com.austinv11.etf.ETFConfig;
 import com.austinv11.etf.common.TermTypes;
+import com.austinv11.etf.erlang.ErlangMap;
+import com.austinv11.etf.erlang.Tuple;
 import com.austinv11.etf.parsing.ETFParser;
+import com.austinv11.etf.util.DictionaryTrainer;
 import com.austinv11.etf.util.ETFConstants;
+import com.austinv11.etf.util.ETFException;
+import com.austinv11.etf.util.GenerateCodec;
+import com.austinv11.etf.util.Mapper;
+import com.austinv11.etf.writing.BufferPool;
+import com.austinv11.etf.writing.ETFBatchWriter;
+import com.austinv11.etf.writing.ETFTemplate;
+import com.austinv11.etf.writing.ETFWriter;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import org.json.JSONObject;
 import org.junit.Assert;
 
 import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class ETFTester {
@@ -23,6 +40,18 @@ public class ETFTester {
     public static final char[] MAP = {131,116,0,0,0,1,109,0,0,0,1,100,97,10};
     public static final char[] LIST = {131,108,0,0,0,3,97,1,97,2,97,3,106};
     public static final char[] NIL = {131, 106};
+    //These were generated with erlang:term_to_binary/1
+    public static final char[] MIN_SMALL_INT = {131,97,1};
+    public static final char[] MIN_INT = {131,98,0,0,1,0};
+    public static final char[] NEGATIVE_INT = {131,98,255,255,255,255};
+    public static final char[] MIN_BIG = {131,110,4,0,0,0,0,128};
+    public static final char[] NEGATIVE_BIG = {131,110,4,1,1,0,0,128};
+    public static final char[] MAX_LONG = {131,110,8,0,255,255,255,255,255,255,255,127};
+    public static final char[] MIN_LONG = {131,110,8,1,0,0,0,0,0,0,0,128};
+    public static final char[] BIG_NUMBER = {131,110,9,0,0,0,0,0,0,0,0,0,1}; //1 bsl 64
+    public static final char[] SMALL_TUPLE = {131,104,2,97,1,97,2};
+    public static final char[] BYTE_LIST = {131,107,0,3,1,2,3};
+    public static final char[] NEW_FLOAT = {131,70,63,248,0,0,0,0,0,0};
     public static final ETFConfig CONFIG = new ETFConfig()
             .setIncludeHeader(true)
             .setCompression(false)
@@ -30,6 +59,7 @@ public class ETFTester {
             .setBert(false)
             .setVersion(ETFConstants.VERSION)
             .setLoqui(true);
+    public static final ETFConfig WRITER_CONFIG = new ETFConfig();
 
     private static void printParser(ETFParser parser) {
         while (!parser.isFinished()) {
@@ -67,6 +97,33 @@ public class ETFTester {
         testCase(MAP, map, "map");
         testCase(LIST, Arrays.asList(1,2,3), "list");
         testCase(NIL, null, "nil");
+
+        testWriteCase(1, MIN_SMALL_INT, "small int");
+        testWriteCase(256, MIN_INT, "int");
+        testWriteCase(-1, NEGATIVE_INT, "negative int");
+        testWriteCase(2147483648L, MIN_BIG, "long");
+        testWriteCase(-2147483649L, NEGATIVE_BIG, "negative long");
+        testWriteCase(Long.MAX_VALUE, MAX_LONG, "max long");
+        testWriteCase(Long.MIN_VALUE, MIN_LONG, "min long");
+        testWriteCase(BigInteger.ONE.shiftLeft(64), BIG_NUMBER, "big number");
+        testWriteCase(BigInteger.ONE, MIN_SMALL_INT, "small big integer");
+        testWriteCase(new Tuple(new Object[]{1, 2}), SMALL_TUPLE, "tuple");
+        testWriteCase(new int[]{1, 2, 3}, BYTE_LIST, "byte list");
+        testWriteCase(1.5, NEW_FLOAT, "float");
+
+        testPooledWriter();
+        testTargetBuffer();
+        testMapperRoundTrip();
+        testStreamingWriter();
+        testCompression();
+        testCompressionDictionary();
+        testSizeOf();
+        testSegments();
+        testTemplate();
+        testBeginEnd();
+        testParallelWriter();
+        testBatchWriter();
+        testGeneratedCodec();
     }
 
     private static byte[] charsToBytes(char[] chars) {
@@ -82,6 +139,273 @@ public class ETFTester {
         Assert.assertTrue(message, next == null ? expected == null : next.equals(expected));
     }
 
+    private static void testWriteCase(Object value, char[] expected, String message) {
+        byte[] written = WRITER_CONFIG.createWriter().write(value).toBytes();
+        System.out.printf("Expected: %s, Written: %s%n", Arrays.toString(charsToBytes(expected)), Arrays.toString(written));
+        Assert.assertArrayEquals(message, charsToBytes(expected), written);
+    }
+
+    private static void testPooledWriter() {
+        BufferPool pool = new BufferPool(64, 4096, 4, true);
+        for (int i = 0; i < 100; i++) {
+            ETFWriter writer = CONFIG.createWriter(pool);
+            writer.write(Arrays.asList(i, "pooled", new byte[i * 64])); //Forces the writer to grow past a few size classes
+            ByteBuffer buffer = writer.toBuffer();
+            Assert.assertTrue("pooled buffer should be direct", buffer.isDirect());
+            Assert.assertArrayEquals("pooled writer output", CONFIG.createWriter().write(Arrays.asList(i, "pooled", new byte[i * 64])).toBytes(), toArray(buffer));
+            pool.release(buffer);
+        }
+        Assert.assertEquals("leaked pooled buffers: " + pool.getLeaks(), 0, pool.getOutstanding());
+    }
+
+    private static void testTargetBuffer() {
+        Object term = Arrays.asList(1, "target", new byte[1024]);
+        ETFConfig segmented = new ETFConfig().setLoqui(true).setSegmentThreshold(512);
+        for (boolean direct : new boolean[]{false, true}) {
+            for (ETFConfig config : new ETFConfig[]{CONFIG, segmented}) {
+                byte[] expected = config.createWriter().write(term).toBytes();
+                for (int size : new int[]{16, 4096}) { //Too small forces the writer to grow out of the target
+                    ByteBuffer target = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+                    target.put(new byte[10]); //Whatever the caller already had in the buffer
+                    ETFWriter writer = config.createWriter(target);
+                    writer.write(term);
+                    Assert.assertArrayEquals("target writer bytes", expected, writer.toBytes());
+                    Assert.assertArrayEquals("target writer buffer", expected, toArray(writer.toBuffer()));
+                }
+            }
+        }
+    }
+
+    private static void testMapperRoundTrip() {
+        Mapper mapper = new Mapper(CONFIG);
+        MappedObject object = new MappedObject();
+        object.id = 5; //Small enough to be written as an int
+        object.boxedId = 2147483648L;
+        object.ids = new Long[]{1L, Long.MAX_VALUE};
+        MappedObject read = mapper.read(mapper.writeToMap(object), MappedObject.class);
+        Assert.assertEquals("long property", object.id, read.id);
+        Assert.assertEquals("boxed long property", object.boxedId, read.boxedId);
+        Assert.assertEquals("short property", object.small, read.small);
+        Assert.assertEquals("byte property", object.tiny, read.tiny);
+        Assert.assertEquals("float property", object.ratio, read.ratio, 0);
+        Assert.assertArrayEquals("long array property", object.ids, read.ids);
+        Assert.assertArrayEquals("byte array property", object.data, read.data);
+        Assert.assertEquals("string property", object.name, read.name);
+    }
+
+    private static void testStreamingWriter() {
+        byte[] blob = new byte[10000];
+        Arrays.fill(blob, (byte) 7);
+        Object term = Arrays.asList(1, "streamed", blob, map("d", 10));
+        byte[] expected = CONFIG.createWriter().write(term).writeBinary(new ByteArrayInputStream(blob), blob.length).toBytes();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ETFWriter(CONFIG, out, 64).write(term).writeBinary(new ByteArrayInputStream(blob), blob.length).flush(); //Flushed as it's written
+        Assert.assertArrayEquals("stream writer bytes", expected, out.toByteArray());
+        out.reset();
+        new ETFWriter(CONFIG, Channels.newChannel(out), 64).write(term).writeBinary(Channels.newChannel(new ByteArrayInputStream(blob)), blob.length).flush();
+        Assert.assertArrayEquals("channel writer bytes", expected, out.toByteArray());
+    }
+
+    private static void testCompression() {
+        ETFConfig compressed = new ETFConfig().setLoqui(true).setCompression(true).setCompressionThreshold(0);
+        List<Object> term = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            term.add(map("id", i));
+        byte[] bytes = compressed.createWriter().write(term).toBytes();
+        byte[] uncompressed = new ETFConfig().setLoqui(true).createWriter().write(term).toBytes();
+        Assert.assertEquals("compressed header", TermTypes.HEADER, bytes[1]);
+        Assert.assertTrue("compressed size", bytes.length < uncompressed.length);
+        Assert.assertEquals("compressed round trip", compressed.createParser(uncompressed).next(), compressed.createParser(bytes).next());
+
+        ETFConfig headerless = new ETFConfig().setLoqui(true).setIncludeHeader(false).setCompression(true).setCompressionThreshold(0);
+        Assert.assertEquals("headerless compressed round trip", compressed.createParser(uncompressed).next(),
+                headerless.createParser(headerless.createWriter().write(term).toBytes()).next());
+    }
+
+    private static void testCompressionDictionary() {
+        ETFConfig plain = new ETFConfig().setLoqui(true);
+        DictionaryTrainer trainer = new DictionaryTrainer();
+        for (int i = 0; i < 100; i++)
+            trainer.addSample(plain.createWriter().write(map("content", "message " + i)).toBytes());
+        byte[] dictionary = trainer.train();
+        ETFConfig compressed = new ETFConfig().setLoqui(true).setCompression(true).setCompressionThreshold(0)
+                .setCompressionDictionary(dictionary);
+        Object term = map("content", "message 1000");
+        byte[] bytes = compressed.createWriter().write(term).toBytes();
+        Assert.assertEquals("dictionary compressed header", TermTypes.HEADER, bytes[1]);
+        ETFConfig receiver = new ETFConfig().setLoqui(true).registerCompressionDictionary(dictionary);
+        Assert.assertEquals("dictionary round trip", plain.createParser(plain.createWriter().write(term).toBytes()).next(),
+                receiver.createParser(bytes).next());
+        try {
+            plain.createParser(bytes);
+            Assert.fail("parsed without the compression dictionary");
+        } catch (ETFException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("No compression dictionary is registered"));
+        }
+    }
+
+    private static void testSizeOf() {
+        Object[] terms = {0, 300, -1, 2147483648L, Long.MIN_VALUE, BigInteger.ONE.shiftLeft(64), 1.5, "", "size", "n\u00e4me",
+                null, true, new byte[300], new int[]{1, 2, 3}, new int[]{1000}, new Tuple(new Object[]{1, "two"}),
+                Arrays.asList(1, Arrays.asList("nested", 2.5)), map("d", Arrays.asList(1, 2, 3)), new MappedObject()};
+        for (ETFConfig config : new ETFConfig[]{WRITER_CONFIG, new ETFConfig().setLoqui(true)}) {
+            for (Object term : terms) {
+                if (term instanceof Boolean && !config.isLoqui())
+                    continue; //Only loqui writes booleans
+                ETFWriter writer = config.createWriter();
+                Assert.assertEquals("size of " + term, writer.write(term).toBytes().length - 1, writer.sizeOf(term)); //Minus the version byte
+            }
+        }
+    }
+
+    private static void testSegments() {
+        ETFConfig segmented = new ETFConfig().setLoqui(true).setSegmentThreshold(512);
+        Object term = Arrays.asList("header", new byte[1024], 2, ByteBuffer.allocateDirect(2048), map("d", new byte[600]));
+        byte[] expected = new ETFConfig().setLoqui(true).createWriter().write(term).toBytes();
+        ETFWriter writer = segmented.createWriter().write(term);
+        ByteBuffer[] segments = writer.toSegments();
+        Assert.assertTrue("large binaries should be referenced", segments.length > 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer segment : segments) {
+            byte[] bytes = toArray(segment);
+            out.write(bytes, 0, bytes.length);
+        }
+        Assert.assertArrayEquals("concatenated segments", expected, out.toByteArray());
+        Assert.assertArrayEquals("segmented writer bytes", expected, writer.toBytes());
+    }
+
+    private static void testTemplate() {
+        ETFConfig config = new ETFConfig().setLoqui(true);
+        ETFTemplate.Slot sequence = ETFTemplate.intSlot(), id = ETFTemplate.longSlot(), ratio = ETFTemplate.floatSlot();
+        Map<String, Object> shape = new LinkedHashMap<>();
+        shape.put("op", 1);
+        shape.put("s", sequence);
+        shape.put("d", Arrays.asList(id, ratio, "fixed"));
+        ETFTemplate template = config.createTemplate(shape);
+        for (long value : new long[]{0, -7, 1L << 40, Long.MAX_VALUE, Long.MIN_VALUE + 1}) {
+            byte[] bytes = template.newMessage().setInt(sequence, (int) value).setLong(id, value).setFloat(ratio, value / 2.0).toBytes();
+            ErlangMap parsed = config.createParser(bytes).nextMap();
+            Assert.assertEquals("template constant", 1, ((Number) parsed.get("op")).intValue());
+            Assert.assertEquals("template int slot", (int) value, ((Number) parsed.get("s")).intValue());
+            List<?> data = (List<?>) parsed.get("d");
+            Assert.assertEquals("template long slot", value, ((Number) data.get(0)).longValue());
+            Assert.assertEquals("template float slot", value / 2.0, ((Number) data.get(1)).doubleValue(), 0);
+            Assert.assertEquals("template string", "fixed", data.get(2));
+        }
+    }
+
+    private static void testBeginEnd() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("a", 1);
+        map.put("b", Arrays.asList(2, 3));
+        Object term = Arrays.asList(new Tuple(new Object[]{1, 300}), Arrays.asList(5L, 6000000000L), map, null, "begun",
+                new int[]{1, 2}, Collections.emptyList());
+        for (ETFConfig config : new ETFConfig[]{CONFIG, WRITER_CONFIG}) {
+            byte[] expected = config.createWriter().write(term).toBytes();
+            ETFWriter writer = config.createWriter().beginList()
+                    .writeTuple(new int[]{1, 300})
+                    .writeList(new long[]{5L, 6000000000L})
+                    .beginMap().writeString("a").writeInt(1).writeString("b").beginList().write(2).write(3).end().end()
+                    .writeNil()
+                    .writeString("begun")
+                    .writeList(new int[]{1, 2})
+                    .beginList().end()
+                    .end();
+            Assert.assertArrayEquals("begun list bytes", expected, writer.toBytes());
+        }
+
+        //Flushing reuses buffer positions, so later lists must still count elements which start where earlier ones did
+        byte[] expected = WRITER_CONFIG.createWriter().writeNil(true).write(Collections.singletonList(1)).writeNil(true)
+                .writeNil(true).write(Collections.singletonList(1)).toBytes();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ETFWriter(WRITER_CONFIG, out, 64).writeNil(true).beginList().write(1).end().flush()
+                .writeNil(true).writeNil(true).beginList().write(1).end().flush();
+        Assert.assertArrayEquals("flushed begun list bytes", expected, out.toByteArray());
+    }
+
+    private static void testParallelWriter() {
+        List<Object> list = new ArrayList<>();
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            list.add(i % 4 == 0 ? Arrays.asList("name" + i, i, (double) i) : "value" + i);
+            if (i < 2000)
+                map.put("key" + i, list.get(i));
+        }
+        Object term = Arrays.asList(list, map, list.toArray());
+        for (boolean loqui : new boolean[]{false, true}) {
+            byte[] expected = new ETFConfig().setLoqui(loqui).createWriter().write(term).toBytes();
+            ETFConfig parallel = new ETFConfig().setLoqui(loqui).setParallelThreshold(1000);
+            Assert.assertArrayEquals("parallel writer bytes", expected, parallel.createWriter().write(term).toBytes());
+            Assert.assertArrayEquals("parallel segmented writer bytes", expected,
+                    parallel.setSegmentThreshold(4096).createWriter().write(term).toBytes());
+        }
+    }
+
+    private static void testBatchWriter() {
+        Object[] messages = {map("op", 1), Arrays.asList("batched", 2L << 40), new byte[1000], 3};
+        for (boolean versioned : new boolean[]{false, true}) {
+            for (boolean lengthPrefixed : new boolean[]{false, true}) {
+                ETFBatchWriter batch = WRITER_CONFIG.createBatchWriter(versioned, lengthPrefixed);
+                ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                for (Object message : messages) {
+                    byte[] bytes = WRITER_CONFIG.createWriter().write(message).toBytes();
+                    int from = versioned ? 0 : 1; //Skips the version byte
+                    if (lengthPrefixed) {
+                        int length = bytes.length - from;
+                        expected.write(length >>> 24);
+                        expected.write(length >>> 16);
+                        expected.write(length >>> 8);
+                        expected.write(length);
+                    }
+                    expected.write(bytes, from, bytes.length - from);
+                    batch.write(message);
+                }
+                byte[] all = expected.toByteArray();
+                Assert.assertEquals("batch frame count", messages.length, batch.getFrameCount());
+                int offset = 0;
+                for (int i = 0; i < messages.length; i++) {
+                    Assert.assertEquals("batch frame offset", offset, batch.getOffset(i));
+                    byte[] frame = toArray(batch.getFrame(i));
+                    Assert.assertEquals("batch frame length", frame.length, batch.getLength(i));
+                    Assert.assertArrayEquals("batch frame bytes", Arrays.copyOfRange(all, offset, offset + frame.length), frame);
+                    if (lengthPrefixed)
+                        Assert.assertEquals("batch length prefix", frame.length - 4, ByteBuffer.wrap(frame).getInt());
+                    offset += frame.length;
+                }
+                Assert.assertArrayEquals("batch bytes", all, batch.toBytes());
+            }
+        }
+    }
+
+    private static void testGeneratedCodec() throws ClassNotFoundException {
+        Class.forName(ETFTester.class.getName() + "_CodecObject_ETFCodec"); //Otherwise the mapper falls back to reflection
+        CodecObject object = new CodecObject();
+        object.nested = new MappedObject();
+        for (ETFConfig config : new ETFConfig[]{CONFIG, WRITER_CONFIG}) {
+            Mapper mapper = config.createMapper();
+            byte[] generated = mapper.writeToMap(object);
+            Assert.assertArrayEquals("generated codec bytes", config.createWriter().writeMap(object).toBytes(), generated);
+            CodecObject read = mapper.read(generated, CodecObject.class);
+            Assert.assertEquals("generated codec long", object.id, read.id);
+            Assert.assertEquals("generated codec int", object.count, read.count);
+            Assert.assertEquals("generated codec string", object.name, read.name);
+            Assert.assertArrayEquals("generated codec array", object.values, read.values);
+            Assert.assertEquals("generated codec nested object", object.nested.name, read.nested.name);
+        }
+    }
+
+    private static Map<String, Object> map(String key, Object value) {
+        Map<String, Object> map = new HashMap<>();
+        map.put(key, value);
+        return map;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
     private static void readEtf(InputStream is) throws IOException, ClassNotFoundException {
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 
@@ -176,6 +500,26 @@ public class ETFTester {
         System.out.println(System.currentTimeMillis() - init2);
     }
 
+    @GenerateCodec
+    public static class CodecObject {
+        public long id = 80351110224678912L;
+        public int count = 42;
+        public String name = "codec";
+        public int[] values = {1, 2, 300};
+        public MappedObject nested;
+    }
+
+    public static class MappedObject {
+        public long id;
+        public Long boxedId;
+        public short small = 7;
+        public byte tiny = -3;
+        public float ratio = 0.5F;
+        public Long[] ids;
+        public byte[] data = {0, 1, -1, 127, -128};
+        public String name = "mapped";
+    }
+
     private static class TestObject {
 
         public int op;